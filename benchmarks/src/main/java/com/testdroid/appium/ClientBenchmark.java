@@ -0,0 +1,63 @@
+package com.testdroid.appium;
+
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openqa.selenium.remote.DesiredCapabilities;
+
+/**
+ * Client-side cost of building capabilities and reading configuration
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientBenchmark {
+
+    private TestdroidAppiumClient client;
+
+    @Setup
+    public void setUp() throws Exception {
+        // Configuration is a snapshot, reload it so the client and getProperty() see the property
+        System.setProperty(TestdroidAppiumClient.TESTDROID_USERNAME, "benchmark@example.com");
+        TestdroidConfig.reload();
+        client = new TestdroidAppiumClient();
+        // Local Appium URL keeps setCommonCapabilities() away from the cloud API
+        client.setAppiumUrl(new URL("http://localhost:4723/wd/hub"));
+        client.setFileUUID(TestdroidAppiumClient.TESTDROID_UUID_SAMPLE_ANDROID);
+        client.setDeviceName("Benchmark Device");
+        client.setPlatformName(TestdroidAppiumClient.APPIUM_PLATFORM_ANDROID);
+        client.setAndroidPackage("com.bitbar.testdroid");
+        client.setAndroidActivity(".BitbarSampleApplicationActivity");
+    }
+
+    @Benchmark
+    public DesiredCapabilities setCommonCapabilities() throws Exception {
+        return client.setCommonCapabilities();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String getPropertyUncontended() {
+        return client.getProperty(TestdroidAppiumClient.TESTDROID_USERNAME);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String getPropertyContended() {
+        return client.getProperty(TestdroidAppiumClient.TESTDROID_USERNAME);
+    }
+}
@@ -0,0 +1,81 @@
+package com.testdroid.appium;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openqa.selenium.OutputType;
+
+/**
+ * Decoding and storing a screenshot the way TestdroidAppiumClient.screenshot() does, with the base64 PNG a
+ * stubbed driver would return
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScreenshotBenchmark {
+
+    private String base64Png;
+    private File target;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // Phone sized screen with some structure so PNG compression behaves like on a real capture
+        BufferedImage image = new BufferedImage(1080, 1920, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        Random random = new Random(42);
+        for(int i = 0; i < 200; i++) {
+            g.setColor(new Color(random.nextInt(0xffffff)));
+            g.fillRect(random.nextInt(1080), random.nextInt(1920), random.nextInt(400), random.nextInt(200));
+        }
+        g.dispose();
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        base64Png = Base64.getEncoder().encodeToString(png.toByteArray());
+        target = File.createTempFile("screenshot", ".png");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        target.delete();
+    }
+
+    @Benchmark
+    public File decodeToTempFileAndCopy() throws IOException {
+        File scrFile = OutputType.FILE.convertFromBase64Png(base64Png);
+        FileUtils.copyFile(scrFile, target);
+        scrFile.delete();
+        return target;
+    }
+
+    @Benchmark
+    public File decodeBytesAndWrite() throws IOException {
+        byte[] bytes = OutputType.BYTES.convertFromBase64Png(base64Png);
+        FileUtils.writeByteArrayToFile(target, bytes);
+        return target;
+    }
+}
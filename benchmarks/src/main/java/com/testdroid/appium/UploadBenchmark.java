@@ -0,0 +1,106 @@
+package com.testdroid.appium;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Multipart encoding of application files, alone and uploaded to an in-process stub of the Appium broker
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadBenchmark {
+
+    private static final byte[] UPLOAD_RESPONSE = ("{\"status\":0,\"sessionId\":null,\"value\":{\"message\":\"uploads successful\","
+            + "\"uploadCount\":1,\"expiresIn\":1800,\"uploads\":{\"file\":\"benchmark/app.apk\"}}}").getBytes();
+
+    @Param({ "1", "32" })
+    public int fileSizeMb;
+
+    private File appFile;
+    private HttpServer server;
+    private AppUploader uploader;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        appFile = File.createTempFile("benchmark", ".apk");
+        appFile.deleteOnExit();
+        // Random content so nothing on the way can compress it
+        byte[] chunk = new byte[1024 * 1024];
+        new Random(42).nextBytes(chunk);
+        OutputStream out = new FileOutputStream(appFile);
+        try {
+            for(int i = 0; i < fileSizeMb; i++) {
+                out.write(chunk);
+            }
+        } finally {
+            out.close();
+        }
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/upload", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                byte[] buffer = new byte[64 * 1024];
+                while(in.read(buffer) != -1) {
+                    // drain
+                }
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, UPLOAD_RESPONSE.length);
+                exchange.getResponseBody().write(UPLOAD_RESPONSE);
+                exchange.close();
+            }
+        });
+        server.start();
+
+        URL uploadUrl = new URL("http://localhost:" + server.getAddress().getPort() + "/upload");
+        uploader = new AppUploader(new TestdroidHttpTransport(), new JacksonFactory(), uploadUrl, "benchmark", "benchmark");
+        uploader.setProgressListener(null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop(0);
+        appFile.delete();
+    }
+
+    @Benchmark
+    public void encodeMultipart() throws IOException {
+        uploader.createContent(appFile).writeTo(new NullOutputStream());
+    }
+
+    @Benchmark
+    public Object uploadToStub() throws Exception {
+        return uploader.upload(appFile);
+    }
+}
@@ -0,0 +1,71 @@
+package com.testdroid.appium;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.testdroid.api.DefaultAPIClient;
+
+/**
+ * Testdroid API clients shared by cloud URL and user.
+ *
+ * Clients using the same account share one API client and its access token, while different accounts get clients
+ * of their own. The least recently used client is dropped when the pool is full.
+ */
+public class ApiClientPool {
+
+    public static final int DEFAULT_MAX_CLIENTS = 16;
+
+    private static final Logger logger = LoggerFactory.getLogger(ApiClientPool.class);
+
+    private static ApiClientPool defaultPool;
+
+    private final Map<String, PooledClient> clients;
+
+    private static class PooledClient {
+        final String password;
+        final DefaultAPIClient api;
+
+        PooledClient(String password, DefaultAPIClient api) {
+            this.password = password;
+            this.api = api;
+        }
+    }
+
+    public ApiClientPool(final int maxClients) {
+        clients = new LinkedHashMap<String, PooledClient>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PooledClient> eldest) {
+                return size() > maxClients;
+            }
+        };
+    }
+
+    public static synchronized ApiClientPool getDefault() {
+        if(defaultPool == null) {
+            defaultPool = new ApiClientPool(DEFAULT_MAX_CLIENTS);
+        }
+        return defaultPool;
+    }
+
+    /**
+     * Get API client for the account, creating it if needed
+     */
+    public synchronized DefaultAPIClient get(String cloudUrl, String username, String password) {
+        String key = cloudUrl + "\n" + username;
+        PooledClient client = clients.get(key);
+        // A changed password needs a new login
+        if(client == null || (client.password == null ? password != null : !client.password.equals(password))) {
+            logger.info("Creating API client for {} at {}", username, cloudUrl);
+            client = new PooledClient(password, new DefaultAPIClient(cloudUrl, username, password));
+            clients.put(key, client);
+        }
+        return client.api;
+    }
+
+    public synchronized int size() {
+        return clients.size();
+    }
+}
@@ -0,0 +1,207 @@
+package com.testdroid.appium;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.client.http.AbstractHttpContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonObjectParser;
+import com.testdroid.api.http.MultipartFormDataContent;
+
+/**
+ * Uploads application files to the Testdroid Appium broker.
+ *
+ * The file is streamed from a FileChannel in fixed-size chunks in a single request. Failed attempts caused by
+ * I/O errors or server errors are retried with exponential backoff.
+ */
+public class AppUploader {
+
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    private static final long INITIAL_BACKOFF_MS = 2000;
+    // Progress is logged at most this often by the default listener
+    private static final long LOG_INTERVAL_MS = 5000;
+
+    private static final Logger logger = LoggerFactory.getLogger(AppUploader.class);
+
+    private final TestdroidHttpTransport transport;
+    private final JsonFactory jsonFactory;
+    private final URL uploadUrl;
+    private final String username;
+    private final String password;
+
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private UploadProgressListener listener = new LoggingProgressListener();
+
+    public AppUploader(TestdroidHttpTransport transport, JsonFactory jsonFactory, URL uploadUrl, String username, String password) {
+        this.transport = transport;
+        this.jsonFactory = jsonFactory;
+        this.uploadUrl = uploadUrl;
+        this.username = username;
+        this.password = password;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Set number of retries after a failed attempt, use 0 to fail on first error
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public void setProgressListener(UploadProgressListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Upload file
+     *
+     * @return Response of the Appium broker
+     */
+    public TestdroidAppiumClient.AppiumResponse upload(File file) throws IOException, InterruptedException {
+        final HttpHeaders headers = new HttpHeaders().setBasicAuthentication(username, password);
+
+        HttpRequestFactory requestFactory = transport.createRequestFactory(new HttpRequestInitializer() {
+            public void initialize(HttpRequest request) {
+                request.setParser(new JsonObjectParser(jsonFactory));
+                request.setHeaders(headers);
+            }
+        });
+
+        HttpResponse response = execute(requestFactory, file);
+        // Parsing is not retried, the file has been uploaded already
+        try {
+            return response.parseAs(TestdroidAppiumClient.AppiumResponse.class);
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    /**
+     * Send the file, retrying transport errors and retryable status codes
+     */
+    private HttpResponse execute(HttpRequestFactory requestFactory, File file) throws IOException, InterruptedException {
+        int attempt = 0;
+        long backoff = INITIAL_BACKOFF_MS;
+        while(true) {
+            attempt++;
+            HttpRequest request = requestFactory.buildPostRequest(new GenericUrl(uploadUrl), createContent(file));
+            request.setNumberOfRetries(0);
+            try {
+                return request.execute();
+            } catch (IOException e) {
+                if(attempt > maxRetries || !isRetryable(e)) {
+                    throw e;
+                }
+                if(listener != null) {
+                    listener.retrying(file, attempt, e);
+                }
+                Thread.sleep(backoff);
+                backoff *= 2;
+            }
+        }
+    }
+
+    /**
+     * Create the multipart body for uploading file, the body can be written any number of times
+     */
+    HttpContent createContent(File file) {
+        MultipartFormDataContent multipartContent = new MultipartFormDataContent();
+        multipartContent.addPart(new MultipartFormDataContent.Part("file", new FileChannelContent(file)));
+        return multipartContent;
+    }
+
+    private static boolean isRetryable(IOException e) {
+        if(e instanceof HttpResponseException) {
+            int status = ((HttpResponseException) e).getStatusCode();
+            return status >= 500 || status == 408 || status == 429;
+        }
+        return true;
+    }
+
+    /**
+     * File content written straight from a FileChannel so the file is never buffered in memory
+     */
+    private class FileChannelContent extends AbstractHttpContent {
+
+        private final File file;
+
+        FileChannelContent(File file) {
+            super("application/octet-stream");
+            this.file = file;
+        }
+
+        @Override
+        public long getLength() {
+            return file.length();
+        }
+
+        @Override
+        public boolean retrySupported() {
+            return true;
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                long total = channel.size();
+                ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+                long sent = 0;
+                long started = System.currentTimeMillis();
+                while(channel.read(buffer) != -1) {
+                    buffer.flip();
+                    out.write(buffer.array(), 0, buffer.limit());
+                    sent += buffer.limit();
+                    buffer.clear();
+                    if(listener != null) {
+                        long elapsed = Math.max(1, System.currentTimeMillis() - started);
+                        listener.progress(file, sent, total, sent * 1000 / elapsed);
+                    }
+                }
+                out.flush();
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+    }
+
+    static class LoggingProgressListener implements UploadProgressListener {
+
+        private long lastLogged;
+
+        public void progress(File file, long bytesSent, long totalBytes, long bytesPerSecond) {
+            long now = System.currentTimeMillis();
+            if(bytesSent == totalBytes || now - lastLogged >= LOG_INTERVAL_MS) {
+                lastLogged = now;
+                logger.info("Uploaded {}/{} bytes of {} ({} kB/s)", new Object[] { bytesSent, totalBytes, file.getName(), bytesPerSecond / 1024 });
+            }
+        }
+
+        public void retrying(File file, int attempt, Exception cause) {
+            logger.warn("Upload attempt {} of {} failed, retrying", new Object[] { attempt, file.getName(), cause });
+        }
+    }
+}
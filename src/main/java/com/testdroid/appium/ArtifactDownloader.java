@@ -0,0 +1,324 @@
+package com.testdroid.appium;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.testdroid.api.model.APIDeviceRun;
+
+/**
+ * Downloads result-data.zip of every device run once the test run has finished.
+ *
+ * Downloads of all runs share a bounded pool. Each download is streamed to a ".part" file through a FileChannel
+ * and renamed when complete; an interrupted download or server error is resumed with a range request on the next
+ * attempt, other HTTP errors fail the download at once.
+ *
+ * Clients register their test run when testdroid.artifactDir is set, files are written to
+ * artifactDir/testRunName/deviceName-deviceRunId.zip. quit() of the client waits for the run to finish and its
+ * files to be downloaded, see awaitRun().
+ */
+public class ArtifactDownloader implements RunStatusPoller.RunListener {
+
+    public static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = 4;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    private static final long INITIAL_BACKOFF_MS = 2000;
+    // Bytes transferred from the response per transferFrom() call
+    private static final long TRANSFER_CHUNK = 1024 * 1024;
+    private static final String PART_SUFFIX = ".part";
+
+    private static final Logger logger = LoggerFactory.getLogger(ArtifactDownloader.class);
+
+    private static ArtifactDownloader defaultDownloader;
+
+    private static class HttpStatusException extends IOException {
+        final int status;
+
+        HttpStatusException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private static class Target {
+        final File directory;
+        final String username;
+        final String password;
+        final TestdroidHttpTransport transport;
+        final CountDownLatch submitted = new CountDownLatch(1);
+        final List<Future<File>> downloads = new CopyOnWriteArrayList<Future<File>>();
+        final AtomicInteger pending = new AtomicInteger();
+
+        Target(File directory, String username, String password, TestdroidHttpTransport transport) {
+            this.directory = directory;
+            this.username = username;
+            this.password = password;
+            this.transport = transport;
+        }
+    }
+
+    private final ExecutorService executor;
+    private final Map<RunStatusPoller.TrackedRun, Target> targets = new ConcurrentHashMap<RunStatusPoller.TrackedRun, Target>();
+    // Downloads in progress, removed when done
+    private final List<Future<File>> downloads = new CopyOnWriteArrayList<Future<File>>();
+
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+
+    public ArtifactDownloader(int maxConcurrentDownloads) {
+        final AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(maxConcurrentDownloads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ArtifactDownloader-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Shared downloader listening to the default run status poller
+     */
+    public static synchronized ArtifactDownloader getDefault() {
+        if(defaultDownloader == null) {
+            defaultDownloader = new ArtifactDownloader(DEFAULT_MAX_CONCURRENT_DOWNLOADS);
+            RunStatusPoller.getDefault().addListener(defaultDownloader);
+        }
+        return defaultDownloader;
+    }
+
+    /**
+     * Set number of retries after a failed attempt, each retry resumes where the previous attempt stopped
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Download the results of run when it finishes
+     *
+     * @param directory Directory the results are written to
+     */
+    public void register(RunStatusPoller.TrackedRun run, File directory, String username, String password, TestdroidHttpTransport transport) {
+        // Runs the poller gave up on never finish, forget them and their credentials
+        for(Iterator<RunStatusPoller.TrackedRun> i = targets.keySet().iterator(); i.hasNext();) {
+            if(i.next().isDropped()) {
+                i.remove();
+            }
+        }
+        targets.put(run, new Target(directory, username, password, transport));
+    }
+
+    /**
+     * Don't download the results of run, e.g. when it is no longer tracked. Downloads already started go on.
+     */
+    public void unregister(RunStatusPoller.TrackedRun run) {
+        Target target = targets.get(run);
+        // Finished runs are removed once their downloads are done
+        if(target != null && target.submitted.getCount() > 0) {
+            targets.remove(run);
+        }
+    }
+
+    public void runFinished(final RunStatusPoller.TrackedRun run, List<APIDeviceRun> deviceRuns) {
+        // Kept until the downloads are done, for awaitRun()
+        final Target target = targets.get(run);
+        if(target == null) {
+            return;
+        }
+        target.pending.set(deviceRuns.size());
+        File runDirectory = new File(target.directory, fileName(run.getTestRunName()));
+        for(APIDeviceRun deviceRun : deviceRuns) {
+            final String url = run.getResultDataUrl(deviceRun);
+            final File file = new File(runDirectory, fileName(deviceRun.getDeviceName()) + "-" + deviceRun.getId() + ".zip");
+            FutureTask<File> download = new FutureTask<File>(new Callable<File>() {
+                public File call() throws Exception {
+                    try {
+                        return download(url, file, target.username, target.password, target.transport);
+                    } catch (Exception e) {
+                        logger.error("Failed to download {}", url, e);
+                        throw e;
+                    }
+                }
+            }) {
+                @Override
+                protected void done() {
+                    downloads.remove(this);
+                    if(target.pending.decrementAndGet() == 0) {
+                        targets.remove(run);
+                    }
+                }
+            };
+            target.downloads.add(download);
+            downloads.add(download);
+            executor.execute(download);
+        }
+        target.submitted.countDown();
+        if(deviceRuns.isEmpty()) {
+            targets.remove(run);
+        }
+    }
+
+    /**
+     * Wait for the downloads in progress
+     *
+     * @return Files downloaded while waiting, failed downloads are left out
+     */
+    public List<File> awaitDownloads(long timeoutMs) throws InterruptedException, TimeoutException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        List<File> files = new ArrayList<File>();
+        for(Future<File> download : downloads) {
+            try {
+                files.add(download.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+            } catch (ExecutionException e) {
+                // logged by the download
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Wait until run has finished and its results have been downloaded. Returns at once if run was not registered.
+     *
+     * @return Downloaded files, failed downloads are left out
+     * @throws TimeoutException if the run has not finished or its downloads are not done within timeoutMs, or the
+     *             run is no longer polled without having finished
+     */
+    public List<File> awaitRun(RunStatusPoller.TrackedRun run, long timeoutMs) throws InterruptedException, TimeoutException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        Target target = targets.get(run);
+        if(target == null) {
+            return new ArrayList<File>();
+        }
+        // Checked once a second, the poller does not notify runs it stops tracking
+        while(!target.submitted.await(Math.min(1000, Math.max(0, deadline - System.currentTimeMillis())), TimeUnit.MILLISECONDS)) {
+            if(run.isDropped()) {
+                targets.remove(run);
+                throw new TimeoutException("Test run " + run.getTestRunName() + " is no longer tracked");
+            }
+            if(System.currentTimeMillis() >= deadline) {
+                throw new TimeoutException("Test run " + run.getTestRunName() + " has not finished");
+            }
+        }
+        List<File> files = new ArrayList<File>();
+        for(Future<File> download : target.downloads) {
+            try {
+                files.add(download.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+            } catch (ExecutionException e) {
+                // logged by the download
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Download url to file, resuming a partial download left by an earlier attempt
+     */
+    public File download(String url, File file, String username, String password, TestdroidHttpTransport transport) throws IOException,
+            InterruptedException {
+        File part = new File(file.getPath() + PART_SUFFIX);
+        if(part.getParentFile() != null && !part.getParentFile().isDirectory() && !part.getParentFile().mkdirs()) {
+            throw new IOException("Unable to create directory " + part.getParentFile());
+        }
+        int attempt = 0;
+        long backoff = INITIAL_BACKOFF_MS;
+        while(true) {
+            attempt++;
+            try {
+                transfer(url, part, username, password, transport);
+                break;
+            } catch (IOException e) {
+                // Client errors such as 401, 403 and 404 don't go away on retry
+                if(attempt > maxRetries || (e instanceof HttpStatusException && ((HttpStatusException) e).status < 500)) {
+                    throw e;
+                }
+                logger.warn("Download attempt {} of {} failed, resuming at {} bytes", new Object[] { attempt, url, part.length(), e });
+                Thread.sleep(backoff);
+                backoff *= 2;
+            }
+        }
+        if((file.exists() && !file.delete()) || !part.renameTo(file)) {
+            throw new IOException("Unable to rename " + part + " to " + file);
+        }
+        logger.info("Downloaded {} ({} bytes)", file.getAbsolutePath(), file.length());
+        return file;
+    }
+
+    private void transfer(String url, File part, String username, String password, TestdroidHttpTransport transport) throws IOException {
+        long offset = part.length();
+        HttpHeaders headers = new HttpHeaders().setBasicAuthentication(username, password);
+        // Offsets refer to the file as stored, not to a compressed response
+        headers.setAcceptEncoding("identity");
+        if(offset > 0) {
+            headers.setRange("bytes=" + offset + "-");
+        }
+        HttpRequest request = transport.createRequestFactory(null).buildGetRequest(new GenericUrl(url));
+        request.setHeaders(headers);
+        request.setNumberOfRetries(0);
+        request.setThrowExceptionOnExecuteError(false);
+        HttpResponse response = request.execute();
+        try {
+            int status = response.getStatusCode();
+            if(status == 416 && offset > 0) {
+                // Range starts at the end, the part file is already complete
+                return;
+            }
+            if(status != 200 && status != 206) {
+                throw new HttpStatusException(status, String.format("Download of %s failed: %d %s", url, status, response.getStatusMessage()));
+            }
+            if(status == 200) {
+                // Range not honoured, start over
+                offset = 0;
+            }
+            RandomAccessFile out = new RandomAccessFile(part, "rw");
+            InputStream in = response.getContent();
+            try {
+                FileChannel channel = out.getChannel();
+                channel.truncate(offset);
+                ReadableByteChannel source = Channels.newChannel(in);
+                long position = offset;
+                long transferred;
+                while((transferred = channel.transferFrom(source, position, TRANSFER_CHUNK)) > 0) {
+                    position += transferred;
+                }
+            } finally {
+                IOUtils.closeQuietly(in);
+                out.close();
+            }
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    private static String fileName(String name) {
+        return name == null ? "unknown" : name.replaceAll("[^A-Za-z0-9._-]+", "_");
+    }
+}
@@ -0,0 +1,429 @@
+package com.testdroid.appium;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index of a result-data.zip that is queried without extracting the archive.
+ *
+ * Entries are read straight from the zip one at a time. Indexing records the name and size of every entry and,
+ * for log files, the number of lines and the byte offset of every CHECKPOINT_LINES:th line. Reading lines from the
+ * middle of a long log jumps to the nearest checkpoint instead of decoding and splitting every line before it.
+ * Compressed entries still have to be inflated from the start up to the checkpoint, only stored entries are
+ * skipped without reading them.
+ *
+ * Usage:
+ *
+ * <pre>
+ * List&lt;ArtifactIndex&gt; indexes = ArtifactIndex.indexAll(downloader.awaitDownloads(60000), 4);
+ * for(ArtifactIndex.Match match : ArtifactIndex.grepAll(indexes, Pattern.compile("FATAL EXCEPTION"), 4)) { ... }
+ * </pre>
+ */
+public class ArtifactIndex {
+
+    public static final int CHECKPOINT_LINES = 1000;
+
+    private static final String[] LOG_SUFFIXES = { ".log", ".txt", ".logcat" };
+    private static final String[] SCREENSHOT_SUFFIXES = { ".png", ".jpg", ".jpeg" };
+
+    private static final Logger logger = LoggerFactory.getLogger(ArtifactIndex.class);
+
+    public static class Entry {
+        private final String name;
+        private final long size;
+        private final long compressedSize;
+        private int lineCount;
+        private long[] checkpoints; // Byte offset of line i * CHECKPOINT_LINES, null for entries that aren't logs
+
+        Entry(ZipEntry zipEntry) {
+            this.name = zipEntry.getName();
+            this.size = zipEntry.getSize();
+            this.compressedSize = zipEntry.getCompressedSize();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return Uncompressed size, -1 if not known
+         */
+        public long getSize() {
+            return size;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public boolean isLog() {
+            return checkpoints != null;
+        }
+
+        public boolean isScreenshot() {
+            return hasSuffix(name, SCREENSHOT_SUFFIXES);
+        }
+
+        /**
+         * @return Number of lines of a log, 0 for other entries
+         */
+        public int getLineCount() {
+            return lineCount;
+        }
+    }
+
+    public static class Match {
+        private final File file;
+        private final String entryName;
+        private final int lineNumber;
+        private final String line;
+
+        Match(File file, String entryName, int lineNumber, String line) {
+            this.file = file;
+            this.entryName = entryName;
+            this.lineNumber = lineNumber;
+            this.line = line;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public String getEntryName() {
+            return entryName;
+        }
+
+        /**
+         * @return Line number starting from 0
+         */
+        public int getLineNumber() {
+            return lineNumber;
+        }
+
+        public String getLine() {
+            return line;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s!%s:%d: %s", file.getName(), entryName, lineNumber, line);
+        }
+    }
+
+    private final File file;
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    private ArtifactIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Index zip file, reading every log entry once
+     */
+    public static ArtifactIndex index(File file) throws IOException {
+        ArtifactIndex index = new ArtifactIndex(file);
+        ZipFile zip = new ZipFile(file);
+        try {
+            Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+            while(zipEntries.hasMoreElements()) {
+                ZipEntry zipEntry = zipEntries.nextElement();
+                if(zipEntry.isDirectory()) {
+                    continue;
+                }
+                Entry entry = new Entry(zipEntry);
+                if(hasSuffix(entry.name, LOG_SUFFIXES)) {
+                    indexLines(zip, zipEntry, entry);
+                }
+                index.entries.put(entry.name, entry);
+            }
+        } finally {
+            zip.close();
+        }
+        return index;
+    }
+
+    /**
+     * Index zip files in parallel
+     *
+     * @return Indexes in the order of files, files that can't be read are logged and left out
+     */
+    public static List<ArtifactIndex> indexAll(List<File> files, int threads) throws InterruptedException {
+        List<Callable<ArtifactIndex>> tasks = new ArrayList<Callable<ArtifactIndex>>();
+        for(final File file : files) {
+            tasks.add(new Callable<ArtifactIndex>() {
+                public ArtifactIndex call() throws IOException {
+                    return index(file);
+                }
+            });
+        }
+        return invokeAll(tasks, files, threads);
+    }
+
+    /**
+     * Search the logs of all indexes in parallel
+     *
+     * @return Matches in the order of indexes, archives that can't be read are logged and left out
+     */
+    public static List<Match> grepAll(List<ArtifactIndex> indexes, final Pattern pattern, int threads) throws InterruptedException {
+        List<Callable<List<Match>>> tasks = new ArrayList<Callable<List<Match>>>();
+        for(final ArtifactIndex index : indexes) {
+            tasks.add(new Callable<List<Match>>() {
+                public List<Match> call() throws IOException {
+                    return index.grep(pattern);
+                }
+            });
+        }
+        List<Match> matches = new ArrayList<Match>();
+        List<File> files = new ArrayList<File>();
+        for(ArtifactIndex index : indexes) {
+            files.add(index.file);
+        }
+        for(List<Match> indexMatches : invokeAll(tasks, files, threads)) {
+            matches.addAll(indexMatches);
+        }
+        return matches;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<Entry>(entries.values()));
+    }
+
+    public Entry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    public List<Entry> getScreenshots() {
+        List<Entry> screenshots = new ArrayList<Entry>();
+        for(Entry entry : entries.values()) {
+            if(entry.isScreenshot()) {
+                screenshots.add(entry);
+            }
+        }
+        return screenshots;
+    }
+
+    /**
+     * Find lines matching pattern in all logs
+     */
+    public List<Match> grep(Pattern pattern) throws IOException {
+        List<Match> matches = new ArrayList<Match>();
+        ZipFile zip = new ZipFile(file);
+        try {
+            for(Entry entry : entries.values()) {
+                if(!entry.isLog()) {
+                    continue;
+                }
+                BufferedReader reader = openLines(zip, entry, 0);
+                try {
+                    String line;
+                    int lineNumber = 0;
+                    while((line = reader.readLine()) != null) {
+                        if(pattern.matcher(line).find()) {
+                            matches.add(new Match(file, entry.name, lineNumber, line));
+                        }
+                        lineNumber++;
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+        } finally {
+            zip.close();
+        }
+        return matches;
+    }
+
+    /**
+     * Read lines of a log
+     *
+     * @param fromLine First line to read, starting from 0
+     * @param count Maximum number of lines
+     */
+    public List<String> readLines(String entryName, int fromLine, int count) throws IOException {
+        Entry entry = entries.get(entryName);
+        if(entry == null || !entry.isLog()) {
+            throw new IOException(String.format("%s has no log %s", file, entryName));
+        }
+        List<String> lines = new ArrayList<String>();
+        ZipFile zip = new ZipFile(file);
+        try {
+            BufferedReader reader = openLines(zip, entry, fromLine);
+            try {
+                String line;
+                while(lines.size() < count && (line = reader.readLine()) != null) {
+                    lines.add(line);
+                }
+            } finally {
+                reader.close();
+            }
+        } finally {
+            zip.close();
+        }
+        return lines;
+    }
+
+    /**
+     * Extract a single entry
+     */
+    public File extract(String entryName, File target) throws IOException {
+        ZipFile zip = new ZipFile(file);
+        try {
+            ZipEntry zipEntry = zip.getEntry(entryName);
+            if(zipEntry == null) {
+                throw new IOException(String.format("%s has no entry %s", file, entryName));
+            }
+            InputStream in = zip.getInputStream(zipEntry);
+            OutputStream out = null;
+            try {
+                out = new FileOutputStream(target);
+                IOUtils.copy(in, out);
+            } finally {
+                IOUtils.closeQuietly(in);
+                IOUtils.closeQuietly(out);
+            }
+        } finally {
+            zip.close();
+        }
+        return target;
+    }
+
+    /**
+     * Open reader positioned at line fromLine. The bytes before the nearest checkpoint are skipped without
+     * decoding them, which for a compressed entry still means inflating them.
+     */
+    private static BufferedReader openLines(ZipFile zip, Entry entry, int fromLine) throws IOException {
+        InputStream in = zip.getInputStream(zip.getEntry(entry.name));
+        int checkpoint = Math.min(fromLine / CHECKPOINT_LINES, entry.checkpoints.length - 1);
+        long offset = checkpoint >= 0 ? entry.checkpoints[checkpoint] : 0;
+        long remaining = offset;
+        while(remaining > 0) {
+            long skipped = in.skip(remaining);
+            if(skipped <= 0) {
+                break;
+            }
+            remaining -= skipped;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        for(int line = Math.max(0, checkpoint) * CHECKPOINT_LINES; line < fromLine; line++) {
+            if(reader.readLine() == null) {
+                break;
+            }
+        }
+        return reader;
+    }
+
+    private static void indexLines(ZipFile zip, ZipEntry zipEntry, Entry entry) throws IOException {
+        List<Long> checkpoints = new ArrayList<Long>();
+        checkpoints.add(0L);
+        InputStream in = new BufferedInputStream(zip.getInputStream(zipEntry));
+        try {
+            // Lines end at \n, \r or \r\n like in BufferedReader.readLine(), each checkpoint is the start of a line
+            long offset = 0;
+            int lines = 0;
+            boolean pendingLine = false;
+            boolean afterCarriageReturn = false;
+            byte[] buffer = new byte[8192];
+            int read;
+            while((read = in.read(buffer)) != -1) {
+                for(int i = 0; i < read; i++) {
+                    byte b = buffer[i];
+                    long position = offset + i;
+                    if(afterCarriageReturn) {
+                        afterCarriageReturn = false;
+                        // The line ended at \r and the next one starts here, or after the \n of \r\n
+                        long lineStart = b == '\n' ? position + 1 : position;
+                        lines++;
+                        if(lines % CHECKPOINT_LINES == 0) {
+                            checkpoints.add(lineStart);
+                        }
+                        if(b == '\n') {
+                            continue;
+                        }
+                    }
+                    if(b == '\r') {
+                        afterCarriageReturn = true;
+                        pendingLine = false;
+                    } else if(b == '\n') {
+                        lines++;
+                        pendingLine = false;
+                        if(lines % CHECKPOINT_LINES == 0) {
+                            checkpoints.add(position + 1);
+                        }
+                    } else {
+                        pendingLine = true;
+                    }
+                }
+                offset += read;
+            }
+            if(afterCarriageReturn) {
+                lines++;
+            }
+            entry.lineCount = pendingLine ? lines + 1 : lines;
+        } finally {
+            in.close();
+        }
+        entry.checkpoints = new long[checkpoints.size()];
+        for(int i = 0; i < entry.checkpoints.length; i++) {
+            entry.checkpoints[i] = checkpoints.get(i);
+        }
+    }
+
+    /**
+     * @param labels Archive of each task, for logging failures
+     */
+    private static <T> List<T> invokeAll(List<Callable<T>> tasks, List<?> labels, int threads) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, tasks.size())));
+        try {
+            List<T> results = new ArrayList<T>();
+            List<Future<T>> futures = executor.invokeAll(tasks);
+            for(int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    logger.warn("Skipping unreadable archive {}", labels.get(i), e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static boolean hasSuffix(String name, String[] suffixes) {
+        String lowerCase = name.toLowerCase();
+        for(String suffix : suffixes) {
+            if(lowerCase.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,186 @@
+package com.testdroid.appium;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openqa.selenium.By;
+import org.openqa.selenium.OutputType;
+import org.openqa.selenium.WebElement;
+import org.openqa.selenium.remote.RemoteWebDriver;
+
+/**
+ * Runs the commands of one session on a thread pool shared by all sessions, returning futures.
+ *
+ * Commands of a session run one at a time in the order they were submitted, commands of different sessions run
+ * in parallel. A pool thread is busy only while a command is executing, so many sessions can be driven from a
+ * few threads: with the default pool of 16 threads, 100 sessions waiting for their next command hold no threads.
+ *
+ * Usage:
+ *
+ * <pre>
+ * Future&lt;WebElement&gt; button = driver.async().findElement(By.id("button1"));
+ * Future&lt;byte[]&gt; screenshot = driver.async().screenshot();
+ * button.get().click();
+ * </pre>
+ */
+public class AsyncDriver {
+
+    public static final int DEFAULT_POOL_SIZE = 16;
+
+    private static ExecutorService sharedPool;
+
+    private final RemoteWebDriver driver;
+    private final SerialExecutor executor;
+
+    public AsyncDriver(RemoteWebDriver driver) {
+        this(driver, getSharedPool());
+    }
+
+    /**
+     * @param pool Pool executing the commands, may be shared by any number of sessions
+     */
+    public AsyncDriver(RemoteWebDriver driver, Executor pool) {
+        this.driver = driver;
+        this.executor = new SerialExecutor(pool);
+    }
+
+    static synchronized ExecutorService getSharedPool() {
+        if(sharedPool == null) {
+            final AtomicInteger count = new AtomicInteger();
+            sharedPool = Executors.newFixedThreadPool(DEFAULT_POOL_SIZE, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "AsyncDriver-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sharedPool;
+    }
+
+    public RemoteWebDriver getDriver() {
+        return driver;
+    }
+
+    /**
+     * Run any commands of this session in order with the other submitted commands
+     */
+    public <T> Future<T> submit(Callable<T> commands) {
+        FutureTask<T> task = new FutureTask<T>(commands);
+        executor.execute(task);
+        return task;
+    }
+
+    public Future<WebElement> findElement(final By by) {
+        return submit(new Callable<WebElement>() {
+            public WebElement call() {
+                return driver.findElement(by);
+            }
+        });
+    }
+
+    public Future<List<WebElement>> findElements(final By by) {
+        return submit(new Callable<List<WebElement>>() {
+            public List<WebElement> call() {
+                return driver.findElements(by);
+            }
+        });
+    }
+
+    public Future<Void> click(final WebElement element) {
+        return submit(new Callable<Void>() {
+            public Void call() {
+                element.click();
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> sendKeys(final WebElement element, final CharSequence... keys) {
+        return submit(new Callable<Void>() {
+            public Void call() {
+                element.sendKeys(keys);
+                return null;
+            }
+        });
+    }
+
+    public Future<String> getText(final WebElement element) {
+        return submit(new Callable<String>() {
+            public String call() {
+                return element.getText();
+            }
+        });
+    }
+
+    /**
+     * @return PNG bytes of the screenshot
+     */
+    public Future<byte[]> screenshot() {
+        return submit(new Callable<byte[]>() {
+            public byte[] call() {
+                return driver.getScreenshotAs(OutputType.BYTES);
+            }
+        });
+    }
+
+    public Future<String> getPageSource() {
+        return submit(new Callable<String>() {
+            public String call() {
+                return driver.getPageSource();
+            }
+        });
+    }
+
+    public Future<Void> quit() {
+        return submit(new Callable<Void>() {
+            public Void call() {
+                driver.quit();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Runs tasks one at a time on another executor
+     */
+    private static class SerialExecutor implements Executor {
+        private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+        private final Executor pool;
+        private Runnable active;
+
+        SerialExecutor(Executor pool) {
+            this.pool = pool;
+        }
+
+        public synchronized void execute(final Runnable task) {
+            tasks.add(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        scheduleNext();
+                    }
+                }
+            });
+            if(active == null) {
+                scheduleNext();
+            }
+        }
+
+        private synchronized void scheduleNext() {
+            active = tasks.poll();
+            if(active != null) {
+                pool.execute(active);
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.testdroid.appium;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Latency histogram and error count for every WebDriver command type of a driver session.
+ *
+ * Recorded by the Testdroid drivers at command execution, exposed through JMX while the session is alive and
+ * logged when the driver quits.
+ */
+public class CommandMetrics implements CommandMetricsMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(CommandMetrics.class);
+
+    private final ConcurrentMap<String, CommandStats> commands = new ConcurrentHashMap<String, CommandStats>();
+
+    private ObjectName objectName;
+
+    static class CommandStats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+    }
+
+    public void record(String command, long nanos, boolean failed) {
+        CommandStats stats = statsFor(command);
+        stats.latency.record(nanos / 1000);
+        if(failed) {
+            stats.errors.incrementAndGet();
+        }
+    }
+
+    CommandStats statsFor(String command) {
+        CommandStats stats = commands.get(command);
+        if(stats == null) {
+            CommandStats created = new CommandStats();
+            stats = commands.putIfAbsent(command, created);
+            if(stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @return Latency histogram of the command or null if it has not been executed
+     */
+    public LatencyHistogram getHistogram(String command) {
+        CommandStats stats = commands.get(command);
+        return stats != null ? stats.latency : null;
+    }
+
+    public long getErrors(String command) {
+        CommandStats stats = commands.get(command);
+        return stats != null ? stats.errors.get() : 0;
+    }
+
+    public String[] getSummary() {
+        List<String> names = new ArrayList<String>(commands.keySet());
+        Collections.sort(names);
+        String[] lines = new String[names.size()];
+        for(int i = 0; i < names.size(); i++) {
+            CommandStats stats = commands.get(names.get(i));
+            LatencyHistogram h = stats.latency;
+            lines[i] = String.format("%-28s count=%-6d errors=%-4d mean=%.1fms p50=%.1fms p90=%.1fms p99=%.1fms max=%.1fms", names.get(i), h.getCount(),
+                    stats.errors.get(), h.getMeanMicros() / 1000.0, h.getPercentileMicros(50) / 1000.0, h.getPercentileMicros(90) / 1000.0,
+                    h.getPercentileMicros(99) / 1000.0, h.getMaxMicros() / 1000.0);
+        }
+        return lines;
+    }
+
+    public long getTotalCommands() {
+        long total = 0;
+        for(CommandStats stats : commands.values()) {
+            total += stats.latency.getCount();
+        }
+        return total;
+    }
+
+    public long getTotalErrors() {
+        long total = 0;
+        for(CommandStats stats : commands.values()) {
+            total += stats.errors.get();
+        }
+        return total;
+    }
+
+    public double getPercentileMillis(String command, double percentile) {
+        LatencyHistogram histogram = getHistogram(command);
+        return histogram != null ? histogram.getPercentileMicros(percentile) / 1000.0 : 0;
+    }
+
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        for(String line : getSummary()) {
+            sb.append(line).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Register as MBean com.testdroid.appium:type=CommandMetrics,name=&lt;name&gt;
+     */
+    public synchronized void register(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("com.testdroid.appium:type=CommandMetrics,name=" + ObjectName.quote(name));
+            if(!server.isRegistered(objectName)) {
+                server.registerMBean(this, objectName);
+            }
+        } catch (Exception e) {
+            logger.warn("Failed to register command metrics MBean", e);
+            objectName = null;
+        }
+    }
+
+    public synchronized void unregister() {
+        if(objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (Exception e) {
+            logger.warn("Failed to unregister command metrics MBean", e);
+        }
+        objectName = null;
+    }
+}
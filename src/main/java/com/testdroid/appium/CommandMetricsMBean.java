@@ -0,0 +1,23 @@
+package com.testdroid.appium;
+
+/**
+ * JMX view of per-command latencies of a driver session
+ */
+public interface CommandMetricsMBean {
+
+    /**
+     * @return One line per command with count, errors and latency percentiles
+     */
+    String[] getSummary();
+
+    long getTotalCommands();
+
+    long getTotalErrors();
+
+    /**
+     * @param command WebDriver command name, e.g. findElement
+     * @param percentile Percentile between 0 and 100
+     * @return Latency in milliseconds
+     */
+    double getPercentileMillis(String command, double percentile);
+}
@@ -0,0 +1,215 @@
+package com.testdroid.appium;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.remote.DriverCommand;
+import org.openqa.selenium.remote.Response;
+import org.openqa.selenium.remote.UnreachableBrowserException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retries commands that failed because the hub could not be reached, so a dropped connection doesn't fail the test.
+ *
+ * Only commands that don't change the application, such as finds, screenshots and page source, are retried, with
+ * exponential backoff. Optionally screenshots and page source are hedged: if the command has taken longer than the
+ * given latency percentile of earlier ones, a duplicate is sent and whichever response arrives first is used.
+ *
+ * Appium executes the commands of a session one at a time, so the duplicate waits behind the original on the
+ * device and can't finish sooner than it. Hedging only helps when the request or its response is lost on the way,
+ * and otherwise adds load, which is why it is off unless a hedge percentile is set.
+ */
+public class CommandRetryPolicy {
+
+    public static final int DEFAULT_MAX_RETRIES = 2;
+    public static final long DEFAULT_BACKOFF_MS = 500;
+
+    private static final long MAX_BACKOFF_MS = 8000;
+    // Percentiles of fewer samples say little about the latency of the session
+    private static final int MIN_HEDGE_SAMPLES = 20;
+
+    private static final Set<String> HEDGED_COMMANDS = new HashSet<String>(Arrays.asList(DriverCommand.SCREENSHOT, DriverCommand.GET_PAGE_SOURCE));
+
+    private static final Logger logger = LoggerFactory.getLogger(CommandRetryPolicy.class);
+
+    private static ExecutorService hedgePool;
+
+    /**
+     * Sends the command to the hub
+     */
+    public interface Command {
+        Response execute();
+    }
+
+    private final int maxRetries;
+    private final long backoffMillis;
+    private volatile double hedgePercentile;
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    public CommandRetryPolicy() {
+        this(DEFAULT_MAX_RETRIES, DEFAULT_BACKOFF_MS);
+    }
+
+    /**
+     * @param maxRetries Retries after the first attempt, 0 disables retrying
+     * @param backoffMillis Delay before the first retry, doubled for each further one
+     */
+    public CommandRetryPolicy(int maxRetries, long backoffMillis) {
+        this.maxRetries = maxRetries;
+        this.backoffMillis = backoffMillis;
+    }
+
+    static synchronized ExecutorService getHedgePool() {
+        if(hedgePool == null) {
+            final AtomicInteger count = new AtomicInteger();
+            hedgePool = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "CommandHedge-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return hedgePool;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * Send a duplicate screenshot or page source command when it takes longer than this percentile of earlier
+     * ones, e.g. 95. 0 disables hedging.
+     */
+    public void setHedgePercentile(double hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    /**
+     * @param latency Latencies of earlier executions of the command, may be null
+     */
+    public Response execute(String command, LatencyHistogram latency, Command call) {
+        boolean retryable = ElementCache.isReadOnly(command);
+        boolean hedged = hedgePercentile > 0 && HEDGED_COMMANDS.contains(command) && latency != null
+                && latency.getCount() >= MIN_HEDGE_SAMPLES;
+        int attempt = 0;
+        while(true) {
+            try {
+                return hedged ? executeHedged(call, latency.getPercentileMicros(hedgePercentile)) : call.execute();
+            } catch (WebDriverException e) {
+                if(!retryable || attempt >= maxRetries || !isTransient(e)) {
+                    throw e;
+                }
+                long delay = Math.min(MAX_BACKOFF_MS, backoffMillis << attempt);
+                attempt++;
+                retries.incrementAndGet();
+                logger.warn("Command {} failed, retry {}/{} in {} ms: {}", new Object[] { command, attempt, maxRetries, delay, e.getMessage() });
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Execute the command, sending a duplicate if there's no response within hedgeDelayMicros. The slower one is
+     * left to finish on its own.
+     */
+    private Response executeHedged(final Command call, long hedgeDelayMicros) {
+        CompletionService<Response> completion = new ExecutorCompletionService<Response>(getHedgePool());
+        Callable<Response> task = new Callable<Response>() {
+            public Response call() {
+                return call.execute();
+            }
+        };
+        try {
+            completion.submit(task);
+            int pending = 1;
+            Future<Response> hedge = null;
+            Future<Response> done = completion.poll(hedgeDelayMicros, TimeUnit.MICROSECONDS);
+            if(done == null) {
+                hedges.incrementAndGet();
+                hedge = completion.submit(task);
+                pending++;
+                done = completion.take();
+            }
+            while(true) {
+                pending--;
+                try {
+                    Response response = done.get();
+                    if(done == hedge) {
+                        hedgeWins.incrementAndGet();
+                    }
+                    return response;
+                } catch (ExecutionException e) {
+                    if(pending == 0) {
+                        if(e.getCause() instanceof RuntimeException) {
+                            throw (RuntimeException) e.getCause();
+                        }
+                        throw new WebDriverException(e.getCause());
+                    }
+                    done = completion.take();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WebDriverException("Interrupted while waiting for command", e);
+        }
+    }
+
+    /**
+     * @return Whether the command failed to reach the hub or to get its response, rather than failing on the device
+     */
+    static boolean isTransient(Throwable e) {
+        for(Throwable t = e; t != null; t = t.getCause()) {
+            if(t instanceof UnreachableBrowserException || t instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    /**
+     * @return Hedged commands where the duplicate responded first
+     */
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Command retries: %d retries, %d hedges, %d won by hedge", retries.get(), hedges.get(), hedgeWins.get());
+    }
+}
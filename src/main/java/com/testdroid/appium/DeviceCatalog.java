@@ -0,0 +1,158 @@
+package com.testdroid.appium;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.testdroid.api.APIDeviceQueryBuilder;
+import com.testdroid.api.APIException;
+import com.testdroid.api.DefaultAPIClient;
+import com.testdroid.api.model.APIDevice;
+
+/**
+ * In-process copy of the Testdroid Cloud device list shared by all clients using the same API client.
+ *
+ * The list is fetched on first use and fetched again only when a lookup needs a newer list than the one held, so
+ * device searches of concurrently starting clients are answered locally instead of every client querying the API.
+ * Every refresh pages through the whole catalog, so callers needing fresh lock states pass a short maximum age
+ * only when they need it, and nothing is refreshed while nobody is looking devices up.
+ */
+public class DeviceCatalog {
+
+    public static final long DEFAULT_TTL_MS = 5 * 60 * 1000L;
+    // A lookup that finds nothing refreshes the list unless it is younger than this
+    private static final long MIN_REFRESH_INTERVAL_MS = 10 * 1000L;
+
+    private static final int PAGE_SIZE = 100;
+
+    private static final Logger logger = LoggerFactory.getLogger(DeviceCatalog.class);
+
+    private static final Map<DefaultAPIClient, DeviceCatalog> CATALOGS = new WeakHashMap<DefaultAPIClient, DeviceCatalog>();
+
+    private final DefaultAPIClient api;
+    private final long ttlMs;
+    private final Object refreshLock = new Object();
+
+    private volatile List<APIDevice> devices;
+    private volatile long fetched;
+
+    DeviceCatalog(DefaultAPIClient api, long ttlMs) {
+        this.api = api;
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * Get catalog shared by everyone using the API client
+     */
+    public static DeviceCatalog forClient(DefaultAPIClient api) {
+        synchronized (CATALOGS) {
+            DeviceCatalog catalog = CATALOGS.get(api);
+            if(catalog == null) {
+                catalog = new DeviceCatalog(api, DEFAULT_TTL_MS);
+                CATALOGS.put(api, catalog);
+            }
+            return catalog;
+        }
+    }
+
+    /**
+     * @return All devices, fetched at most TTL ago
+     */
+    public List<APIDevice> getDevices() throws APIException {
+        return getDevices(ttlMs);
+    }
+
+    /**
+     * @param maxAgeMs Refresh the list first if it is older than this
+     * @return All devices
+     */
+    public List<APIDevice> getDevices(long maxAgeMs) throws APIException {
+        if(devices == null || System.currentTimeMillis() - fetched > maxAgeMs) {
+            long requested = System.currentTimeMillis();
+            synchronized (refreshLock) {
+                // Another thread may have refreshed while we were waiting
+                if(fetched < requested - maxAgeMs || devices == null) {
+                    refresh();
+                }
+            }
+        }
+        return devices;
+    }
+
+    /**
+     * Find devices the same way the API search does, by case-insensitive substring of the name
+     */
+    public List<APIDevice> find(String query) throws APIException {
+        return find(query, ttlMs);
+    }
+
+    public List<APIDevice> find(String query, long maxAgeMs) throws APIException {
+        List<APIDevice> result = find(query, getDevices(maxAgeMs));
+        if(result.isEmpty() && System.currentTimeMillis() - fetched > MIN_REFRESH_INTERVAL_MS) {
+            // The device may have been added since the list was fetched
+            result = find(query, getDevices(MIN_REFRESH_INTERVAL_MS));
+        }
+        return result;
+    }
+
+    private static List<APIDevice> find(String query, List<APIDevice> devices) {
+        String lowerQuery = query.toLowerCase();
+        List<APIDevice> result = new ArrayList<APIDevice>();
+        for(APIDevice device : devices) {
+            if(device.getDisplayName() != null && device.getDisplayName().toLowerCase().contains(lowerQuery)) {
+                result.add(device);
+            }
+        }
+        return result;
+    }
+
+    public List<APIDevice> findByOsType(APIDevice.OsType osType) throws APIException {
+        List<APIDevice> result = new ArrayList<APIDevice>();
+        for(APIDevice device : getDevices()) {
+            if(device.getOsType() == osType) {
+                result.add(device);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return Devices with API level in the range, inclusive. iOS devices have API level 0.
+     */
+    public List<APIDevice> findByApiLevel(int minApiLevel, int maxApiLevel) throws APIException {
+        List<APIDevice> result = new ArrayList<APIDevice>();
+        for(APIDevice device : getDevices()) {
+            if(device.getSoftwareVersion() != null) {
+                int apiLevel = device.getSoftwareVersion().getApiLevel();
+                if(apiLevel >= minApiLevel && apiLevel <= maxApiLevel) {
+                    result.add(device);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void refresh() throws APIException {
+        List<APIDevice> all = new ArrayList<APIDevice>();
+        int offset = 0;
+        while(true) {
+            APIDeviceQueryBuilder query = new APIDeviceQueryBuilder();
+            query.offset(offset);
+            query.limit(PAGE_SIZE);
+            List<APIDevice> page = api.getDevices(query).getEntity().getData();
+            all.addAll(page);
+            if(page.size() < PAGE_SIZE) {
+                break;
+            }
+            offset += page.size();
+        }
+        devices = Collections.unmodifiableList(all);
+        fetched = System.currentTimeMillis();
+        logger.debug("Device catalog refreshed, {} devices", all.size());
+    }
+}
@@ -0,0 +1,173 @@
+package com.testdroid.appium;
+
+import io.appium.java_client.AppiumDriver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the same test on several devices concurrently.
+ *
+ * The application is uploaded once with the template client, after which every device gets its own client,
+ * test run and Appium session. All sessions with the same credentials share one Testdroid API client.
+ *
+ * Usage:
+ *
+ * <pre>
+ * TestdroidAppiumClient template = new TestdroidAppiumClient();
+ * template.setAppFile(new File("BitbarSampleApp.apk"));
+ * DeviceMatrixRunner runner = new DeviceMatrixRunner(template, Arrays.asList("Nexus 7", "Galaxy S4"));
+ * for(DeviceMatrixRunner.DeviceResult result : runner.run(task)) { ... }
+ * </pre>
+ */
+public class DeviceMatrixRunner {
+
+    /**
+     * Test to run on every device
+     */
+    public interface DeviceTask {
+        void run(TestdroidAppiumClient client, AppiumDriver driver) throws Exception;
+    }
+
+    public static class DeviceResult {
+        private final String deviceName;
+        private final Throwable failure;
+        private final long durationMs;
+
+        DeviceResult(String deviceName, Throwable failure, long durationMs) {
+            this.deviceName = deviceName;
+            this.failure = failure;
+            this.durationMs = durationMs;
+        }
+
+        public String getDeviceName() {
+            return deviceName;
+        }
+
+        public boolean isSuccess() {
+            return failure == null;
+        }
+
+        /**
+         * @return Exception thrown by session setup or the task, null if successful
+         */
+        public Throwable getFailure() {
+            return failure;
+        }
+
+        public long getDurationMs() {
+            return durationMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %s (%d ms)", deviceName, isSuccess() ? "passed" : "failed - " + failure, durationMs);
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(DeviceMatrixRunner.class);
+
+    private final TestdroidAppiumClient template;
+    private final List<String> deviceNames;
+
+    private int maxParallelSessions;
+
+    /**
+     * @param template Client holding the configuration shared by all devices
+     * @param deviceNames Device names or search queries, one session is started for each
+     */
+    public DeviceMatrixRunner(TestdroidAppiumClient template, List<String> deviceNames) {
+        this.template = template;
+        this.deviceNames = new ArrayList<String>(deviceNames);
+        this.maxParallelSessions = deviceNames.size();
+    }
+
+    /**
+     * Limit the number of concurrent sessions, by default all devices are started at once
+     */
+    public void setMaxParallelSessions(int maxParallelSessions) {
+        this.maxParallelSessions = maxParallelSessions;
+    }
+
+    /**
+     * Run task on every device and wait for all of them to finish
+     *
+     * @return Results in the order of the device names
+     * @throws Exception if the shared application upload fails
+     */
+    public List<DeviceResult> run(final DeviceTask task) throws Exception {
+        if(!template.isLocalAppium()) {
+            template.resolveFileUUID();
+        }
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(maxParallelSessions, deviceNames.size())), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "DeviceMatrix-" + threadCount.incrementAndGet());
+            }
+        });
+
+        List<Future<DeviceResult>> futures = new ArrayList<Future<DeviceResult>>();
+        try {
+            for(final String deviceName : deviceNames) {
+                futures.add(executor.submit(new Callable<DeviceResult>() {
+                    public DeviceResult call() {
+                        return runOnDevice(deviceName, task);
+                    }
+                }));
+            }
+            List<DeviceResult> results = new ArrayList<DeviceResult>();
+            for(int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    results.add(new DeviceResult(deviceNames.get(i), e.getCause(), 0));
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private DeviceResult runOnDevice(String deviceName, DeviceTask task) {
+        long started = System.currentTimeMillis();
+        TestdroidAppiumClient client = null;
+        boolean sessionStarted = false;
+        try {
+            client = template.forDevice(deviceName);
+            AppiumDriver driver;
+            // Devices of a matrix may run different platforms, the template says nothing about each of them
+            if(TestdroidAppiumClient.APPIUM_PLATFORM_IOS.equalsIgnoreCase(client.lookupPlatformName())) {
+                driver = client.getIOSDriver();
+            } else {
+                driver = client.getAndroidDriver();
+            }
+            sessionStarted = true;
+            task.run(client, driver);
+            logger.info("Device '{}' finished", deviceName);
+            return new DeviceResult(deviceName, null, System.currentTimeMillis() - started);
+        } catch (Throwable t) {
+            logger.error("Device '{}' failed", deviceName, t);
+            return new DeviceResult(deviceName, t, System.currentTimeMillis() - started);
+        } finally {
+            if(sessionStarted) {
+                try {
+                    client.quit();
+                } catch (Exception e) {
+                    logger.warn("Failed to quit session on '{}'", deviceName, e);
+                }
+            }
+        }
+    }
+}
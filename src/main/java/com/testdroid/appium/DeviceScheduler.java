@@ -0,0 +1,160 @@
+package com.testdroid.appium;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.testdroid.api.DefaultAPIClient;
+import com.testdroid.api.model.APIDevice;
+
+/**
+ * Picks a free device matching a device name.
+ *
+ * Devices are looked up from the shared DeviceCatalog. All devices matching the name are considered and the first
+ * unlocked one is used. When every matching device is busy the lookup is repeated with exponential backoff and
+ * jitter. Threads of the same JVM waiting for the same device name queue in FIFO order so only one of them polls
+ * at a time, and a device handed out to one thread is not handed out to another one before the cloud has had time
+ * to lock it.
+ *
+ * The session asks the cloud for the display name of the device handed out, so the cloud may lock another device
+ * of the same model. A reservation therefore stands for one device of the model rather than a specific one. Call
+ * sessionStarted() once the session has been created, and release() when creating it failed or it has ended.
+ */
+public class DeviceScheduler {
+
+    private static final long MIN_BACKOFF_MS = 2000;
+    private static final long MAX_BACKOFF_MS = 30000;
+    // Lock states older than this are not trusted when picking a device
+    private static final long LOCK_STATE_MAX_AGE_MS = 10 * 1000L;
+    // How long a device handed out is skipped if never released, session setup locks it in the cloud well before this
+    private static final long RESERVATION_MS = 2 * 60 * 1000L;
+
+    private static final Logger logger = LoggerFactory.getLogger(DeviceScheduler.class);
+
+    private static final ConcurrentMap<String, ReentrantLock> QUEUES = new ConcurrentHashMap<String, ReentrantLock>();
+    private static final ConcurrentMap<Long, Long> RESERVATIONS = new ConcurrentHashMap<Long, Long>();
+    private static final Random RANDOM = new Random();
+
+    private final DeviceCatalog catalog;
+
+    public DeviceScheduler(DefaultAPIClient api) {
+        this(DeviceCatalog.forClient(api));
+    }
+
+    public DeviceScheduler(DeviceCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    /**
+     * Get a free device, waiting for one if all of them are busy
+     *
+     * @param deviceName Device name or search query
+     * @param waitMs Maximum time to wait for a free device, use 0 for no wait time
+     * @throws Exception if no device matches or every device stays busy
+     */
+    public APIDevice acquire(String deviceName, long waitMs) throws Exception {
+        long deadline = System.currentTimeMillis() + waitMs;
+        ReentrantLock queue = queueFor(deviceName);
+        if(!queue.tryLock(waitMs, TimeUnit.MILLISECONDS)) {
+            throw new Exception(String.format("Every '%s' is busy at the moment", deviceName));
+        }
+        try {
+            long backoff = MIN_BACKOFF_MS;
+            long maxAge = LOCK_STATE_MAX_AGE_MS;
+            while(true) {
+                List<APIDevice> devices = catalog.find(deviceName, maxAge);
+                if(devices.size() == 0) {
+                    logger.error("Unable to find device '{}'", deviceName);
+                    throw new Exception("No device found");
+                }
+                APIDevice device = pickFree(deviceName, devices);
+                if(device != null) {
+                    RESERVATIONS.put(device.getId(), System.currentTimeMillis() + RESERVATION_MS);
+                    return device;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if(remaining <= 0) {
+                    throw new Exception(String.format("Every '%s' is busy at the moment", deviceName));
+                }
+                long sleep = Math.min(remaining, backoff + (long) (RANDOM.nextDouble() * backoff / 2));
+                logger.info("All {} devices matching '{}' are in use right now, retrying in {} ms", new Object[] { devices.size(), deviceName, sleep });
+                Thread.sleep(sleep);
+                // Lock states seen after the wait must be newer than the wait itself
+                maxAge = sleep;
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+            }
+        } finally {
+            queue.unlock();
+        }
+    }
+
+    /**
+     * Prefer devices whose name matches exactly, the search may return other models too
+     */
+    private static APIDevice pickFree(String deviceName, List<APIDevice> devices) {
+        List<APIDevice> candidates = new ArrayList<APIDevice>();
+        for(APIDevice device : devices) {
+            if(deviceName.equalsIgnoreCase(device.getDisplayName())) {
+                candidates.add(device);
+            }
+        }
+        if(candidates.isEmpty()) {
+            candidates = devices;
+        }
+        pruneReservations();
+        for(APIDevice device : candidates) {
+            if(!device.isLocked() && !RESERVATIONS.containsKey(device.getId())) {
+                return device;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Keep the device reserved only until lock states fetched from now on show the device locked by the session
+     */
+    public static void sessionStarted(APIDevice device) {
+        Long id = device.getId();
+        if(RESERVATIONS.containsKey(id)) {
+            RESERVATIONS.put(id, System.currentTimeMillis() + LOCK_STATE_MAX_AGE_MS);
+        }
+    }
+
+    /**
+     * Hand out the device again, e.g. when creating the session failed or the session has ended
+     */
+    public static void release(APIDevice device) {
+        RESERVATIONS.remove(device.getId());
+    }
+
+    private static void pruneReservations() {
+        long now = System.currentTimeMillis();
+        for(Iterator<Map.Entry<Long, Long>> i = RESERVATIONS.entrySet().iterator(); i.hasNext();) {
+            if(i.next().getValue() < now) {
+                i.remove();
+            }
+        }
+    }
+
+    private static ReentrantLock queueFor(String deviceName) {
+        ReentrantLock queue = QUEUES.get(deviceName);
+        if(queue == null) {
+            // Fair lock so waiting threads get their turn in arrival order
+            ReentrantLock created = new ReentrantLock(true);
+            queue = QUEUES.putIfAbsent(deviceName, created);
+            if(queue == null) {
+                queue = created;
+            }
+        }
+        return queue;
+    }
+}
@@ -0,0 +1,131 @@
+package com.testdroid.appium;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.openqa.selenium.OutputType;
+import org.openqa.selenium.StaleElementReferenceException;
+import org.openqa.selenium.remote.RemoteWebDriver;
+import org.openqa.selenium.remote.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per session state and command handling shared by the Testdroid drivers, which extend different Appium drivers
+ * and delegate to this.
+ */
+final class DriverSupport {
+
+    private static final Logger logger = LoggerFactory.getLogger(DriverSupport.class);
+
+    private final RemoteWebDriver driver;
+    private final CommandMetrics commandMetrics = new CommandMetrics();
+    private volatile ElementCache elementCache;
+    private volatile CommandRetryPolicy retryPolicy;
+    private AsyncDriver async;
+
+    DriverSupport(RemoteWebDriver driver) {
+        this.driver = driver;
+    }
+
+    /**
+     * Execute a command through the element cache, the retry policy and the metrics
+     *
+     * @param call Sends the command with the execute() of the Appium driver
+     */
+    Response execute(String driverCommand, Map parameters, CommandRetryPolicy.Command call) {
+        ElementCache cache = elementCache;
+        if(cache != null) {
+            Response cached = cache.get(driverCommand, parameters);
+            if(cached != null) {
+                return cached;
+            }
+        }
+        long started = System.nanoTime();
+        boolean failed = true;
+        try {
+            CommandRetryPolicy policy = retryPolicy;
+            Response response = policy != null ? policy.execute(driverCommand, commandMetrics.getHistogram(driverCommand), call) : call.execute();
+            failed = false;
+            if(cache != null) {
+                cache.executed(driverCommand, parameters, response);
+            }
+            return response;
+        } catch (StaleElementReferenceException e) {
+            if(cache != null) {
+                cache.invalidate();
+            }
+            throw e;
+        } finally {
+            commandMetrics.record(driverCommand, System.nanoTime() - started, failed);
+        }
+    }
+
+    /**
+     * Register the metrics MBean of the session, once the session has been started
+     */
+    void register() {
+        commandMetrics.register(driver.getClass().getSimpleName() + "-" + driver.getSessionId());
+    }
+
+    /**
+     * Quit the session and log its metrics
+     *
+     * @param quit Quits the session with the quit() of the Appium driver
+     */
+    void quit(Runnable quit) {
+        Object sessionId = driver.getSessionId();
+        try {
+            quit.run();
+        } finally {
+            logger.info("Command latencies of session {}:\n{}", sessionId, commandMetrics.dump());
+            if(elementCache != null) {
+                logger.info("{}", elementCache);
+            }
+            if(retryPolicy != null) {
+                logger.info("{}", retryPolicy);
+            }
+            commandMetrics.unregister();
+        }
+    }
+
+    CommandMetrics getCommandMetrics() {
+        return commandMetrics;
+    }
+
+    void setElementCacheEnabled(boolean enabled) {
+        elementCache = enabled ? new ElementCache(ElementCache.DEFAULT_MAX_ENTRIES) : null;
+    }
+
+    ElementCache getElementCache() {
+        return elementCache;
+    }
+
+    void setCommandRetryPolicy(CommandRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    CommandRetryPolicy getCommandRetryPolicy() {
+        return retryPolicy;
+    }
+
+    PageSnapshot snapshot() {
+        return PageSnapshot.parse(driver.getPageSource(), driver);
+    }
+
+    long waitForIdle(long stableMillis, long timeoutMillis, IdleWait.Fingerprint fingerprint) {
+        return IdleWait.waitForIdle(driver, fingerprint, stableMillis, timeoutMillis);
+    }
+
+    synchronized AsyncDriver async() {
+        if(async == null) {
+            async = new AsyncDriver(driver);
+        }
+        return async;
+    }
+
+    Future<File> takeScreenshotAsync(String filePath) throws InterruptedException {
+        return ScreenshotWriter.getDefault().write(driver.getScreenshotAs(OutputType.BYTES), new File(filePath));
+    }
+}
@@ -0,0 +1,124 @@
+package com.testdroid.appium;
+
+import io.appium.java_client.MobileCommand;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openqa.selenium.remote.DriverCommand;
+import org.openqa.selenium.remote.Response;
+
+/**
+ * Remembers the elements found by each locator so repeated lookups don't go to the device.
+ *
+ * Only commands known not to change the application keep the cache. Any other command, such as a click, key
+ * press or navigation, clears it, as does a change of the current activity and a stale element error. Enable it
+ * with setElementCacheEnabled(true) on the driver or testdroid.elementCache.
+ */
+public class ElementCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+
+    private static final Set<String> FIND_COMMANDS = new HashSet<String>(Arrays.asList(DriverCommand.FIND_ELEMENT, DriverCommand.FIND_ELEMENTS,
+            DriverCommand.FIND_CHILD_ELEMENT, DriverCommand.FIND_CHILD_ELEMENTS));
+
+    // Commands that don't change the state of the application
+    private static final Set<String> READ_ONLY_COMMANDS = new HashSet<String>(Arrays.asList(DriverCommand.GET_ELEMENT_TEXT,
+            DriverCommand.GET_ELEMENT_ATTRIBUTE, DriverCommand.GET_ELEMENT_TAG_NAME, DriverCommand.GET_ELEMENT_LOCATION,
+            DriverCommand.GET_ELEMENT_SIZE, DriverCommand.IS_ELEMENT_DISPLAYED, DriverCommand.IS_ELEMENT_ENABLED, DriverCommand.IS_ELEMENT_SELECTED,
+            DriverCommand.GET_PAGE_SOURCE, DriverCommand.SCREENSHOT, DriverCommand.GET_CURRENT_CONTEXT_HANDLE, DriverCommand.GET_CONTEXT_HANDLES,
+            DriverCommand.GET_SCREEN_ORIENTATION, DriverCommand.GET_CURRENT_URL, DriverCommand.GET_TITLE, DriverCommand.GET_CAPABILITIES,
+            DriverCommand.STATUS, MobileCommand.CURRENT_ACTIVITY, MobileCommand.GET_STRINGS, MobileCommand.IS_APP_INSTALLED, MobileCommand.IS_LOCKED));
+
+    private final Map<String, Response> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private Object currentActivity;
+
+    public ElementCache(final int maxEntries) {
+        entries = new LinkedHashMap<String, Response>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Response> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return Cached response of a find command, null if the command has to be executed
+     */
+    public synchronized Response get(String command, Map parameters) {
+        if(!FIND_COMMANDS.contains(command)) {
+            return null;
+        }
+        Response response = entries.get(key(command, parameters));
+        if(response != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return response;
+    }
+
+    /**
+     * Cache the response of a find command, or invalidate the cache if the command may have changed the screen
+     */
+    public synchronized void executed(String command, Map parameters, Response response) {
+        if(FIND_COMMANDS.contains(command)) {
+            // Elements may still appear, an empty result is not worth remembering
+            if(!(response.getValue() instanceof List && ((List<?>) response.getValue()).isEmpty())) {
+                entries.put(key(command, parameters), response);
+            }
+        } else if(MobileCommand.CURRENT_ACTIVITY.equals(command)) {
+            Object activity = response != null ? response.getValue() : null;
+            if(currentActivity != null && !currentActivity.equals(activity)) {
+                invalidate();
+            }
+            currentActivity = activity;
+        } else if(!READ_ONLY_COMMANDS.contains(command)) {
+            invalidate();
+        }
+    }
+
+    public synchronized void invalidate() {
+        if(!entries.isEmpty()) {
+            entries.clear();
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return Whether the command is a find or otherwise doesn't change the state of the application
+     */
+    static boolean isReadOnly(String command) {
+        return FIND_COMMANDS.contains(command) || READ_ONLY_COMMANDS.contains(command);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Element cache: %d hits, %d misses, %d invalidations", hits.get(), misses.get(), invalidations.get());
+    }
+
+    private static String key(String command, Map parameters) {
+        // Child lookups include the id of the parent element
+        return command + "\n" + parameters.get("id") + "\n" + parameters.get("using") + "\n" + parameters.get("value");
+    }
+}
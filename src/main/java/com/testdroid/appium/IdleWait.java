@@ -0,0 +1,83 @@
+package com.testdroid.appium;
+
+import java.io.IOException;
+
+import org.openqa.selenium.OutputType;
+import org.openqa.selenium.TakesScreenshot;
+import org.openqa.selenium.TimeoutException;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+
+/**
+ * Waits until the screen has stopped changing, replacing fixed sleeps after UI actions.
+ *
+ * The screen is sampled with a cheap fingerprint, a hash of the page source or a perceptual hash of a screenshot.
+ * Polling starts fast and slows down while the screen stays the same, so short animations end the wait quickly
+ * without hammering the device during long ones.
+ */
+public class IdleWait {
+
+    public enum Fingerprint {
+        PAGE_SOURCE, SCREENSHOT
+    }
+
+    private static final long MIN_POLL_INTERVAL_MS = 50;
+    private static final long MAX_POLL_INTERVAL_MS = 1000;
+
+    private IdleWait() {
+    }
+
+    /**
+     * Wait until the fingerprint of the screen has not changed for stableMillis
+     *
+     * @return Milliseconds waited
+     * @throws TimeoutException if the screen is still changing after timeoutMillis
+     */
+    public static long waitForIdle(WebDriver driver, Fingerprint fingerprint, long stableMillis, long timeoutMillis) {
+        long started = System.currentTimeMillis();
+        long deadline = started + timeoutMillis;
+        long interval = MIN_POLL_INTERVAL_MS;
+        // Poll at least a few times within the stable window
+        long maxInterval = Math.max(MIN_POLL_INTERVAL_MS, Math.min(MAX_POLL_INTERVAL_MS, stableMillis / 3));
+
+        long previous = fingerprint(driver, fingerprint);
+        long lastChange = System.currentTimeMillis();
+        while(true) {
+            long now = System.currentTimeMillis();
+            if(now - lastChange >= stableMillis) {
+                return now - started;
+            }
+            if(now >= deadline) {
+                throw new TimeoutException(String.format("Screen still changing after %d ms", timeoutMillis));
+            }
+            try {
+                // Don't sleep past the moment the screen would count as stable
+                Thread.sleep(Math.max(0, Math.min(interval, Math.min(lastChange + stableMillis, deadline) - now)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new WebDriverException("Interrupted while waiting for idle screen", e);
+            }
+            long current = fingerprint(driver, fingerprint);
+            if(current != previous) {
+                previous = current;
+                lastChange = System.currentTimeMillis();
+                interval = MIN_POLL_INTERVAL_MS;
+            } else {
+                interval = Math.min(maxInterval, interval * 3 / 2);
+            }
+        }
+    }
+
+    private static long fingerprint(WebDriver driver, Fingerprint fingerprint) {
+        if(fingerprint == Fingerprint.SCREENSHOT) {
+            try {
+                Long hash = ScreenshotDeduplicator.hash(((TakesScreenshot) driver).getScreenshotAs(OutputType.BYTES));
+                return hash != null ? hash : 0;
+            } catch (IOException e) {
+                throw new WebDriverException("Failed decoding screenshot", e);
+            }
+        }
+        String source = driver.getPageSource();
+        return source == null ? 0 : ((long) source.hashCode() << 32) ^ source.length();
+    }
+}
@@ -0,0 +1,496 @@
+package com.testdroid.appium;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.openqa.selenium.InvalidSelectorException;
+import org.openqa.selenium.NoSuchElementException;
+import org.openqa.selenium.WebElement;
+import org.openqa.selenium.internal.FindsByXPath;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * UI hierarchy parsed from one getPageSource() call, queried locally instead of on the device.
+ *
+ * Supports id and class name lookups and the commonly used subset of XPath: location paths starting with "/" or
+ * "//", element names or "*", and predicates [n], [@attribute='value'], [contains(@attribute,'value')] and
+ * [text()='value'], the latter three also combined with "and". Other expressions, such as relative paths, "or",
+ * "!=" or other functions, throw InvalidSelectorException instead of being evaluated differently than on the device.
+ *
+ * Page source has no text nodes, so text() stands for the text attribute of Android elements and the value
+ * attribute of iOS elements, see Node.getText(). Only resolve() goes to the device, to get a real element for a
+ * node.
+ *
+ * Usage:
+ *
+ * <pre>
+ * PageSnapshot snapshot = driver.snapshot();
+ * for(PageSnapshot.Node button : snapshot.findByXPath("//android.widget.Button[@enabled='true']")) {
+ *     logger.info(button.getText());
+ * }
+ * snapshot.resolve(snapshot.findFirstById("button1")).click();
+ * </pre>
+ */
+public class PageSnapshot {
+
+    /**
+     * Element of the UI hierarchy
+     */
+    public static class Node {
+        private final String name;
+        private final String[] attributes; // names and values interleaved
+        private final Node parent;
+        private final int position; // position among siblings with the same name, starting from 1
+        private final List<Node> children = new ArrayList<Node>(2);
+        private int order; // position in document order
+
+        Node(String name, String[] attributes, Node parent, int position) {
+            this.name = name;
+            this.attributes = attributes;
+            this.parent = parent;
+            this.position = position;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getAttribute(String attribute) {
+            for(int i = 0; i < attributes.length; i += 2) {
+                if(attributes[i].equals(attribute)) {
+                    return attributes[i + 1];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return Text of Android elements, value of iOS elements
+         */
+        public String getText() {
+            String text = getAttribute("text");
+            return text != null ? text : getAttribute("value");
+        }
+
+        public Node getParent() {
+            return parent != null && parent.name != null ? parent : null;
+        }
+
+        public List<Node> getChildren() {
+            return Collections.unmodifiableList(children);
+        }
+
+        /**
+         * @return Absolute XPath of this node, e.g. /hierarchy[1]/android.widget.FrameLayout[1]/android.widget.Button[2]
+         */
+        public String getXPath() {
+            StringBuilder xpath = new StringBuilder();
+            for(Node node = this; node.name != null; node = node.parent) {
+                xpath.insert(0, "/" + node.name + "[" + node.position + "]");
+            }
+            return xpath.toString();
+        }
+
+        @Override
+        public String toString() {
+            return getXPath();
+        }
+    }
+
+    private static final Comparator<Node> DOCUMENT_ORDER = new Comparator<Node>() {
+        public int compare(Node a, Node b) {
+            return a.order < b.order ? -1 : (a.order == b.order ? 0 : 1);
+        }
+    };
+
+    private final Node document = new Node(null, new String[0], null, 1);
+    private final List<Node> nodes = new ArrayList<Node>(); // all nodes in document order
+    private final Map<String, List<Node>> byId = new HashMap<String, List<Node>>();
+    private final Map<String, List<Node>> byClass = new HashMap<String, List<Node>>();
+    private final FindsByXPath driver;
+
+    private PageSnapshot(FindsByXPath driver) {
+        this.driver = driver;
+    }
+
+    /**
+     * Parse page source
+     *
+     * @param driver Driver used by resolve(), may be null
+     */
+    public static PageSnapshot parse(String pageSource, FindsByXPath driver) {
+        final PageSnapshot snapshot = new PageSnapshot(driver);
+        try {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.newSAXParser().parse(new InputSource(new StringReader(pageSource)), new DefaultHandler() {
+                Node current = snapshot.document;
+                List<Map<String, Integer>> siblingCounts = new ArrayList<Map<String, Integer>>();
+
+                @Override
+                public void startDocument() {
+                    siblingCounts.add(new HashMap<String, Integer>());
+                }
+
+                @Override
+                public void startElement(String uri, String localName, String qName, Attributes atts) {
+                    Map<String, Integer> counts = siblingCounts.get(siblingCounts.size() - 1);
+                    Integer count = counts.get(qName);
+                    int position = count == null ? 1 : count + 1;
+                    counts.put(qName, position);
+                    String[] attributes = new String[atts.getLength() * 2];
+                    for(int i = 0; i < atts.getLength(); i++) {
+                        attributes[i * 2] = atts.getQName(i).intern();
+                        attributes[i * 2 + 1] = atts.getValue(i);
+                    }
+                    Node node = new Node(qName.intern(), attributes, current, position);
+                    current.children.add(node);
+                    snapshot.add(node);
+                    current = node;
+                    siblingCounts.add(new HashMap<String, Integer>());
+                }
+
+                @Override
+                public void endElement(String uri, String localName, String qName) {
+                    current = current.parent;
+                    siblingCounts.remove(siblingCounts.size() - 1);
+                }
+            });
+        } catch (SAXException e) {
+            throw new IllegalArgumentException("Invalid page source", e);
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return snapshot;
+    }
+
+    private void add(Node node) {
+        node.order = nodes.size();
+        nodes.add(node);
+        // Android resource-id, iOS name
+        String id = node.getAttribute("resource-id");
+        if(id == null) {
+            id = node.getAttribute("name");
+        }
+        if(id != null) {
+            index(byId, id, node);
+            int separator = id.indexOf(":id/");
+            if(separator >= 0) {
+                index(byId, id.substring(separator + ":id/".length()), node);
+            }
+        }
+        String className = node.getAttribute("class");
+        index(byClass, className != null ? className : node.name, node);
+    }
+
+    private static void index(Map<String, List<Node>> index, String key, Node node) {
+        List<Node> list = index.get(key);
+        if(list == null) {
+            list = new ArrayList<Node>(1);
+            index.put(key, list);
+        }
+        list.add(node);
+    }
+
+    /**
+     * @return Number of elements in the hierarchy
+     */
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * @param id Android resource id with or without the package prefix, or iOS name
+     */
+    public List<Node> findById(String id) {
+        List<Node> found = byId.get(id);
+        return found != null ? Collections.unmodifiableList(found) : Collections.<Node> emptyList();
+    }
+
+    public Node findFirstById(String id) {
+        return first(findById(id), "id " + id);
+    }
+
+    public List<Node> findByClassName(String className) {
+        List<Node> found = byClass.get(className);
+        return found != null ? Collections.unmodifiableList(found) : Collections.<Node> emptyList();
+    }
+
+    public Node findFirstByClassName(String className) {
+        return first(findByClassName(className), "class " + className);
+    }
+
+    /**
+     * @return Matching nodes in document order
+     */
+    public List<Node> findByXPath(String xpath) {
+        List<Step> steps = parseXPath(xpath);
+        Set<Node> context = new LinkedHashSet<Node>();
+        context.add(document);
+        for(Step step : steps) {
+            Set<Node> next = new LinkedHashSet<Node>();
+            for(Node node : context) {
+                if(step.descendant) {
+                    collectDescendantSteps(node, step, next);
+                } else {
+                    applyStep(node, step, next);
+                }
+            }
+            context = next;
+        }
+        List<Node> result = new ArrayList<Node>(context);
+        // Steps over several contexts may yield nodes out of document order
+        Collections.sort(result, DOCUMENT_ORDER);
+        return result;
+    }
+
+    public Node findFirstByXPath(String xpath) {
+        return first(findByXPath(xpath), "XPath " + xpath);
+    }
+
+    /**
+     * Get the element of node from the device
+     */
+    public WebElement resolve(Node node) {
+        if(driver == null) {
+            throw new IllegalStateException("Snapshot has no driver");
+        }
+        return driver.findElementByXPath(node.getXPath());
+    }
+
+    private static Node first(List<Node> found, String description) {
+        if(found.isEmpty()) {
+            throw new NoSuchElementException("No element in page snapshot matching " + description);
+        }
+        return found.get(0);
+    }
+
+    // XPath subset
+
+    private static class Step {
+        boolean descendant;
+        String name;
+        List<Predicate> predicates = new ArrayList<Predicate>(1);
+    }
+
+    private static class Predicate {
+        int position; // 0 if not a position predicate
+        List<Condition> conditions = new ArrayList<Condition>(1); // all of them must match
+
+        boolean matches(Node node) {
+            for(Condition condition : conditions) {
+                if(!condition.matches(node)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class Condition {
+        String attribute; // null for text(), which is matched against Node.getText()
+        String value;
+        boolean contains;
+
+        boolean matches(Node node) {
+            String actual = attribute != null ? node.getAttribute(attribute) : node.getText();
+            if(actual == null) {
+                return false;
+            }
+            return contains ? actual.contains(value) : actual.equals(value);
+        }
+    }
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_.\\-]*");
+    private static final Pattern ATTRIBUTE = Pattern.compile("@[A-Za-z_][A-Za-z0-9_.\\-]*(:[A-Za-z_][A-Za-z0-9_.\\-]*)?");
+
+    private static void collectDescendantSteps(Node node, Step step, Set<Node> result) {
+        applyStep(node, step, result);
+        for(Node child : node.children) {
+            collectDescendantSteps(child, step, result);
+        }
+    }
+
+    private static void applyStep(Node node, Step step, Set<Node> result) {
+        List<Node> candidates = new ArrayList<Node>();
+        for(Node child : node.children) {
+            if(step.name.equals("*") || step.name.equals(child.name)) {
+                candidates.add(child);
+            }
+        }
+        // Predicates apply in order, positions refer to the candidates left by earlier predicates
+        for(Predicate predicate : step.predicates) {
+            List<Node> filtered = new ArrayList<Node>();
+            for(int i = 0; i < candidates.size(); i++) {
+                if(predicate.position > 0 ? predicate.position == i + 1 : predicate.matches(candidates.get(i))) {
+                    filtered.add(candidates.get(i));
+                }
+            }
+            candidates = filtered;
+        }
+        result.addAll(candidates);
+    }
+
+    static List<Step> parseXPath(String xpath) {
+        List<Step> steps = new ArrayList<Step>();
+        int pos = 0;
+        int length = xpath.length();
+        if(length == 0) {
+            throw new InvalidSelectorException("Empty XPath");
+        }
+        while(pos < length) {
+            Step step = new Step();
+            if(xpath.startsWith("//", pos)) {
+                step.descendant = true;
+                pos += 2;
+            } else if(xpath.charAt(pos) == '/') {
+                pos++;
+            } else {
+                // Also relative paths, their context node on the device is not known here
+                throw new InvalidSelectorException("Unsupported XPath " + xpath);
+            }
+            int start = pos;
+            while(pos < length && "/[".indexOf(xpath.charAt(pos)) < 0) {
+                pos++;
+            }
+            step.name = xpath.substring(start, pos).trim();
+            // Rejects axes, functions, attribute steps, "." and ".."
+            if(!step.name.equals("*") && !NAME.matcher(step.name).matches()) {
+                throw new InvalidSelectorException("Unsupported XPath " + xpath);
+            }
+            while(pos < length && xpath.charAt(pos) == '[') {
+                int end = closingBracket(xpath, pos);
+                step.predicates.add(parsePredicate(xpath.substring(pos + 1, end).trim(), xpath));
+                pos = end + 1;
+            }
+            steps.add(step);
+        }
+        return steps;
+    }
+
+    private static int closingBracket(String xpath, int open) {
+        char quote = 0;
+        for(int i = open + 1; i < xpath.length(); i++) {
+            char c = xpath.charAt(i);
+            if(quote != 0) {
+                if(c == quote) {
+                    quote = 0;
+                }
+            } else if(c == '\'' || c == '"') {
+                quote = c;
+            } else if(c == ']') {
+                return i;
+            }
+        }
+        throw new InvalidSelectorException("Unterminated predicate in XPath " + xpath);
+    }
+
+    private static Predicate parsePredicate(String expression, String xpath) {
+        Predicate predicate = new Predicate();
+        if(expression.matches("\\d+")) {
+            predicate.position = Integer.parseInt(expression);
+            return predicate;
+        }
+        for(String condition : splitAnd(expression, xpath)) {
+            predicate.conditions.add(parseCondition(condition, xpath));
+        }
+        return predicate;
+    }
+
+    /**
+     * Split expression at the "and" operators outside of literals and parentheses
+     */
+    private static List<String> splitAnd(String expression, String xpath) {
+        List<String> parts = new ArrayList<String>();
+        char quote = 0;
+        int depth = 0;
+        int start = 0;
+        for(int i = 0; i < expression.length(); i++) {
+            char c = expression.charAt(i);
+            if(quote != 0) {
+                if(c == quote) {
+                    quote = 0;
+                }
+            } else if(c == '\'' || c == '"') {
+                quote = c;
+            } else if(c == '(') {
+                depth++;
+            } else if(c == ')') {
+                depth--;
+            } else if(depth == 0 && Character.isWhitespace(c) && expression.startsWith("and", i + 1) && i + 4 < expression.length()
+                    && Character.isWhitespace(expression.charAt(i + 4))) {
+                parts.add(expression.substring(start, i).trim());
+                start = i + 4;
+                i += 3;
+            }
+        }
+        parts.add(expression.substring(start).trim());
+        for(String part : parts) {
+            if(part.length() == 0) {
+                throw new InvalidSelectorException("Unsupported XPath " + xpath);
+            }
+        }
+        return parts;
+    }
+
+    private static Condition parseCondition(String expression, String xpath) {
+        Condition condition = new Condition();
+        String operand;
+        if(expression.startsWith("contains(") && expression.endsWith(")")) {
+            condition.contains = true;
+            String arguments = expression.substring("contains(".length(), expression.length() - 1);
+            int comma = arguments.indexOf(',');
+            if(comma < 0) {
+                throw new InvalidSelectorException("Unsupported XPath " + xpath);
+            }
+            operand = arguments.substring(0, comma).trim();
+            condition.value = literal(arguments.substring(comma + 1).trim(), xpath);
+        } else {
+            int equals = expression.indexOf('=');
+            if(equals < 0) {
+                throw new InvalidSelectorException("Unsupported XPath " + xpath);
+            }
+            operand = expression.substring(0, equals).trim();
+            condition.value = literal(expression.substring(equals + 1).trim(), xpath);
+        }
+        // Anything but @name and text(), e.g. "@text!" of a != comparison, is not supported
+        if(ATTRIBUTE.matcher(operand).matches()) {
+            condition.attribute = operand.substring(1);
+        } else if(!operand.equals("text()")) {
+            throw new InvalidSelectorException("Unsupported XPath " + xpath);
+        }
+        return condition;
+    }
+
+    /**
+     * @return Value of a quoted string literal, the quote character can't appear inside it
+     */
+    private static String literal(String literal, String xpath) {
+        if(literal.length() >= 2) {
+            char quote = literal.charAt(0);
+            if((quote == '\'' || quote == '"') && literal.charAt(literal.length() - 1) == quote) {
+                String value = literal.substring(1, literal.length() - 1);
+                if(value.indexOf(quote) < 0) {
+                    return value;
+                }
+            }
+        }
+        throw new InvalidSelectorException("Unsupported XPath " + xpath);
+    }
+}
@@ -0,0 +1,322 @@
+package com.testdroid.appium;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.testdroid.api.APIException;
+import com.testdroid.api.APIListResource;
+import com.testdroid.api.APIQueryBuilder;
+import com.testdroid.api.DefaultAPIClient;
+import com.testdroid.api.model.APIDeviceRun;
+import com.testdroid.api.model.APIProject;
+import com.testdroid.api.model.APITestRun;
+import com.testdroid.api.model.APIUser;
+
+/**
+ * Polls the status of the test runs started by all clients of the JVM from a single thread.
+ *
+ * Runs in the same project are checked with one query per page of runs, the latest page and further pages only
+ * while some run is not found. Project and test run are looked up by name once and remembered, and a run is no
+ * longer polled after it has finished or has been untracked, e.g. when its client quits.
+ */
+public class RunStatusPoller {
+
+    public static final long DEFAULT_POLL_INTERVAL_MS = 30 * 1000L;
+
+    // Runs not seen in the cloud after this long are dropped, e.g. when session setup failed
+    private static final long MAX_UNSEEN_MS = 30 * 60 * 1000L;
+    // Runs of a project fetched per query
+    private static final int RUNS_PER_PAGE = 50;
+    // Limits the queries per poll for runs that don't show up, e.g. when session setup failed
+    private static final int MAX_PAGES = 10;
+
+    private static final Logger logger = LoggerFactory.getLogger("DeviceRunMonitor");
+
+    private static RunStatusPoller defaultPoller;
+
+    /**
+     * Notified on the poller thread when a tracked run finishes
+     */
+    public interface RunListener {
+        void runFinished(TrackedRun run, List<APIDeviceRun> deviceRuns);
+    }
+
+    public static class TrackedRun {
+        private final DefaultAPIClient api;
+        private final String cloudUrl;
+        private final String projectName;
+        private final String testRunName;
+        private final long started = System.currentTimeMillis();
+        private Future<APIProject> projectFuture;
+        private APIUser me;
+        private APIProject project;
+        private Long testRunId;
+        private volatile boolean finished;
+        private volatile boolean dropped;
+
+        TrackedRun(DefaultAPIClient api, String cloudUrl, String projectName, String testRunName, Future<APIProject> projectFuture) {
+            this.api = api;
+            this.cloudUrl = cloudUrl;
+            this.projectName = projectName;
+            this.testRunName = testRunName;
+            this.projectFuture = projectFuture;
+        }
+
+        public DefaultAPIClient getApi() {
+            return api;
+        }
+
+        public String getTestRunName() {
+            return testRunName;
+        }
+
+        public APIProject getProject() {
+            return project;
+        }
+
+        public Long getTestRunId() {
+            return testRunId;
+        }
+
+        public boolean isFinished() {
+            return finished;
+        }
+
+        /**
+         * @return Whether the run is no longer polled without having finished, because it was untracked or not found
+         */
+        public boolean isDropped() {
+            return dropped;
+        }
+
+        /**
+         * @return API URL of the test run, null until the run has been found
+         */
+        public String getUrl() {
+            if(testRunId == null) {
+                return null;
+            }
+            return String.format("%s/api/v2/users/%d/projects/%d/runs/%d", cloudUrl, me.getId(), project.getId(), testRunId);
+        }
+
+        public String getResultDataUrl(APIDeviceRun deviceRun) {
+            return String.format("%s/device-runs/%d/result-data.zip", getUrl(), deviceRun.getId());
+        }
+    }
+
+    private final List<TrackedRun> runs = new CopyOnWriteArrayList<TrackedRun>();
+    private final List<RunListener> listeners = new CopyOnWriteArrayList<RunListener>();
+    private final ScheduledExecutorService executor;
+
+    public RunStatusPoller(long pollIntervalMs) {
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DeviceRunMonitor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                poll();
+            }
+        }, pollIntervalMs, pollIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized RunStatusPoller getDefault() {
+        if(defaultPoller == null) {
+            defaultPoller = new RunStatusPoller(DEFAULT_POLL_INTERVAL_MS);
+        }
+        return defaultPoller;
+    }
+
+    /**
+     * Start tracking a test run
+     *
+     * @param projectFuture Project looked up during session setup, may be null or yield null
+     */
+    public TrackedRun track(DefaultAPIClient api, String cloudUrl, String projectName, String testRunName, Future<APIProject> projectFuture) {
+        TrackedRun run = new TrackedRun(api, cloudUrl, projectName, testRunName, projectFuture);
+        runs.add(run);
+        return run;
+    }
+
+    public void untrack(TrackedRun run) {
+        if(runs.remove(run)) {
+            run.dropped = true;
+        }
+    }
+
+    public void addListener(RunListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(RunListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Wait until all tracked runs have finished or were dropped
+     *
+     * @return true if nothing is tracked anymore
+     */
+    public boolean awaitAll(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while(!runs.isEmpty()) {
+            if(System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(Math.min(1000, deadline - System.currentTimeMillis()));
+        }
+        return true;
+    }
+
+    private void poll() {
+        // Group runs by API client and project so every project is queried once
+        Map<DefaultAPIClient, Map<String, List<TrackedRun>>> groups = new IdentityHashMap<DefaultAPIClient, Map<String, List<TrackedRun>>>();
+        for(TrackedRun run : runs) {
+            Map<String, List<TrackedRun>> byProject = groups.get(run.api);
+            if(byProject == null) {
+                byProject = new HashMap<String, List<TrackedRun>>();
+                groups.put(run.api, byProject);
+            }
+            List<TrackedRun> projectRuns = byProject.get(run.projectName);
+            if(projectRuns == null) {
+                projectRuns = new ArrayList<TrackedRun>();
+                byProject.put(run.projectName, projectRuns);
+            }
+            projectRuns.add(run);
+        }
+        for(Map.Entry<DefaultAPIClient, Map<String, List<TrackedRun>>> group : groups.entrySet()) {
+            APIUser me = null;
+            for(List<TrackedRun> projectRuns : group.getValue().values()) {
+                try {
+                    if(me == null) {
+                        me = group.getKey().me();
+                    }
+                    pollProject(me, projectRuns);
+                } catch (APIException e) {
+                    logger.error("Failed API query", e);
+                } catch (RuntimeException e) {
+                    logger.error("Failed polling test runs", e);
+                }
+            }
+        }
+    }
+
+    private void pollProject(APIUser me, List<TrackedRun> projectRuns) throws APIException {
+        APIProject project = null;
+        for(TrackedRun run : projectRuns) {
+            run.me = me;
+            if(run.project == null && run.projectFuture != null && run.projectFuture.isDone()) {
+                try {
+                    run.project = run.projectFuture.get();
+                } catch (ExecutionException e) {
+                    logger.warn("Project lookup failed, retrying", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                run.projectFuture = null;
+            }
+            if(run.project != null) {
+                project = run.project;
+            }
+        }
+        if(project == null) {
+            String projectName = projectRuns.get(0).projectName;
+            List<APIProject> projects = me.getProjectsResource(new APIQueryBuilder().offset(0).limit(10).search(projectName)).getEntity().getData();
+            if(projects.size() > 0) {
+                project = projects.get(0);
+                logger.info("Found project: #{} {}", project.getId(), project.getName());
+            }
+        }
+        if(project == null) {
+            dropUnseen(projectRuns);
+            return;
+        }
+
+        List<TrackedRun> unseen = new ArrayList<TrackedRun>(projectRuns);
+        for(TrackedRun run : unseen) {
+            run.project = project;
+        }
+        // Runs are listed newest first, runs of a busy project move to later pages while they are running
+        for(int page = 0; page < MAX_PAGES && !unseen.isEmpty(); page++) {
+            APIListResource<APITestRun> testRunResource = project.getTestRunsResource(new APIQueryBuilder().offset(page * RUNS_PER_PAGE).limit(RUNS_PER_PAGE));
+            List<APITestRun> testRuns = testRunResource.getEntity().getData();
+            for(Iterator<TrackedRun> i = unseen.iterator(); i.hasNext();) {
+                TrackedRun run = i.next();
+                APITestRun testRun = findTestRun(run, testRuns);
+                if(testRun != null) {
+                    i.remove();
+                    update(run, testRun);
+                }
+            }
+            if(testRuns.size() < RUNS_PER_PAGE) {
+                break;
+            }
+        }
+        dropUnseen(unseen);
+    }
+
+    private void update(TrackedRun run, APITestRun testRun) throws APIException {
+        if(run.testRunId == null) {
+            run.testRunId = testRun.getId();
+            logger.info("Test run '{}' found: {}", run.testRunName, run.getUrl());
+        }
+        logger.info("{}: {}", testRun.getDisplayName(), testRun.getState().toString());
+        if(testRun.getState() == APITestRun.State.FINISHED) {
+            finish(run, testRun);
+        }
+    }
+
+    private static APITestRun findTestRun(TrackedRun run, List<APITestRun> testRuns) {
+        for(APITestRun testRun : testRuns) {
+            if(run.testRunId != null ? run.testRunId.equals(testRun.getId()) : run.testRunName.equals(testRun.getDisplayName())) {
+                return testRun;
+            }
+        }
+        return null;
+    }
+
+    private void finish(TrackedRun run, APITestRun testRun) throws APIException {
+        // Fetched first, if this fails the run stays tracked and the next poll tries again
+        List<APIDeviceRun> deviceRuns = testRun.getDeviceRunsResource().getEntity().getData();
+        runs.remove(run);
+        run.finished = true;
+        for(APIDeviceRun deviceRun : deviceRuns) {
+            logger.info("{} #{} {}", new Object[] { deviceRun.getDeviceName(), deviceRun.getId(), run.getResultDataUrl(deviceRun) });
+        }
+        for(RunListener listener : listeners) {
+            try {
+                listener.runFinished(run, deviceRuns);
+            } catch (RuntimeException e) {
+                logger.error("Run listener failed", e);
+            }
+        }
+    }
+
+    private void dropUnseen(List<TrackedRun> unseen) {
+        long now = System.currentTimeMillis();
+        for(TrackedRun run : unseen) {
+            if(now - run.started > MAX_UNSEEN_MS) {
+                logger.warn("Test run '{}' not found, no longer tracking it", run.testRunName);
+                untrack(run);
+            }
+        }
+    }
+}
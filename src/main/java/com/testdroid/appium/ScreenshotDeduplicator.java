@@ -0,0 +1,177 @@
+package com.testdroid.appium;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores a screenshot that looks the same as the previous one as a reference instead of a new PNG.
+ *
+ * Screenshots are compared with a 64-bit difference hash: the image is reduced to 9x8 grayscale cells and
+ * every bit tells whether a cell is brighter than its right neighbour. Screenshots whose hashes differ in at most
+ * threshold bits are duplicates. The default of 0 only drops screenshots with identical hashes; a small real change,
+ * such as a toggled checkbox or one changed label, may differ in only a bit or two, so a higher threshold also
+ * drops such near-duplicate frames. A duplicate is written as a text file named after the target with a ".ref" suffix,
+ * containing the path of the PNG it duplicates.
+ *
+ * Each client has its own deduplicator. Screenshots are compared in the order they were taken even when they are
+ * written by several threads.
+ */
+public class ScreenshotDeduplicator {
+
+    public static final int DEFAULT_THRESHOLD = 0;
+    public static final String REFERENCE_SUFFIX = ".ref";
+
+    private static final int HASH_WIDTH = 9;
+    private static final int HASH_HEIGHT = 8;
+
+    private static final Logger logger = LoggerFactory.getLogger(ScreenshotDeduplicator.class);
+
+    private final int threshold;
+
+    private long nextTicket;
+    private long turn;
+    private final Set<Long> skipped = new HashSet<Long>();
+    private Long previousHash;
+    private File previousFile;
+
+    /**
+     * @param threshold Maximum number of differing hash bits for two screenshots to be duplicates, 0 to 64
+     */
+    public ScreenshotDeduplicator(int threshold) {
+        this.threshold = threshold;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Reserve the position of a screenshot in capture order, called on the thread taking the screenshot
+     */
+    synchronized long nextTicket() {
+        return nextTicket++;
+    }
+
+    /**
+     * Give up the turn of a screenshot that will never be checked, e.g. because writing it was cancelled, so later
+     * screenshots don't wait for it
+     */
+    synchronized void skip(long ticket) {
+        skipped.add(ticket);
+        advance();
+    }
+
+    private void advance() {
+        while(skipped.remove(turn)) {
+            turn++;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Compare screenshot with the previous one and write a reference if it is a duplicate
+     *
+     * @param output File the screenshot will be written to if it is not a duplicate
+     * @param ticket Position returned by nextTicket(), check() waits until all earlier screenshots are checked
+     * @return Earlier screenshot this one duplicates, null if the screenshot has to be written
+     */
+    File check(byte[] png, File target, File output, long ticket) throws IOException {
+        // Hashing is the expensive part and runs in parallel, only the comparison is done in capture order
+        Long hash;
+        try {
+            hash = hash(png);
+        } catch (Exception e) {
+            // Still take the turn, later screenshots wait for it
+            logger.warn("Failed to hash screenshot {}", target.getName(), e);
+            hash = null;
+        }
+        File original;
+        boolean interrupted = false;
+        synchronized (this) {
+            while(turn != ticket) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // Giving up the turn would block all later screenshots, earlier ones are about to finish
+                    interrupted = true;
+                }
+            }
+            try {
+                if(hash != null && previousHash != null && distance(hash, previousHash) <= threshold) {
+                    original = previousFile;
+                } else {
+                    original = null;
+                    previousHash = hash;
+                    previousFile = output;
+                }
+            } finally {
+                turn++;
+                advance();
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if(original != null) {
+            File reference = new File(target.getPath() + REFERENCE_SUFFIX);
+            FileUtils.writeStringToFile(reference, original.getAbsolutePath(), "UTF-8");
+            logger.info("Screenshot {} duplicates {}", target.getName(), original.getName());
+        }
+        return original;
+    }
+
+    /**
+     * @return Difference hash of the image, null if it can't be decoded
+     */
+    static Long hash(byte[] png) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        if(image == null) {
+            return null;
+        }
+        return hash(image);
+    }
+
+    static long hash(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        // Average the pixels of each cell instead of scaling, it is cheap and ignores single-pixel noise
+        long[] sums = new long[HASH_WIDTH * HASH_HEIGHT];
+        int[] counts = new int[HASH_WIDTH * HASH_HEIGHT];
+        int[] row = new int[width];
+        for(int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            int cellY = y * HASH_HEIGHT / height;
+            for(int x = 0; x < width; x++) {
+                int rgb = row[x];
+                int luma = (((rgb >> 16) & 0xff) * 299 + ((rgb >> 8) & 0xff) * 587 + (rgb & 0xff) * 114) / 1000;
+                int cell = cellY * HASH_WIDTH + x * HASH_WIDTH / width;
+                sums[cell] += luma;
+                counts[cell]++;
+            }
+        }
+        long hash = 0;
+        for(int y = 0; y < HASH_HEIGHT; y++) {
+            for(int x = 0; x < HASH_WIDTH - 1; x++) {
+                int left = y * HASH_WIDTH + x;
+                long leftLuma = counts[left] == 0 ? 0 : sums[left] / counts[left];
+                long rightLuma = counts[left + 1] == 0 ? 0 : sums[left + 1] / counts[left + 1];
+                hash = (hash << 1) | (leftLuma > rightLuma ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+
+    static int distance(long hash1, long hash2) {
+        return Long.bitCount(hash1 ^ hash2);
+    }
+}
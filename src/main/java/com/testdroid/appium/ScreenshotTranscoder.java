@@ -0,0 +1,185 @@
+package com.testdroid.appium;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Downscales and re-encodes screenshots before they are written.
+ *
+ * Screenshots written in the background are transcoded on a shared pool with one thread per processor, so
+ * screenshots of many devices are transcoded in parallel.
+ *
+ * Usage:
+ *
+ * <pre>
+ * ScreenshotTranscoder transcoder = new ScreenshotTranscoder();
+ * transcoder.setMaxDimension(1024);
+ * transcoder.setFormat(ScreenshotTranscoder.FORMAT_JPEG);
+ * client.setScreenshotTranscoder(transcoder);
+ * </pre>
+ */
+public class ScreenshotTranscoder {
+
+    public static final String FORMAT_JPEG = "jpg";
+    public static final String FORMAT_PNG = "png";
+    public static final float DEFAULT_QUALITY = 0.8f;
+
+    private static ExecutorService pool;
+
+    private int maxDimension;
+    private String format = FORMAT_JPEG;
+    private float quality = DEFAULT_QUALITY;
+    private boolean keepOriginal;
+
+    /**
+     * Pool transcoding the screenshots written in the background
+     */
+    static synchronized ExecutorService getPool() {
+        if(pool == null) {
+            final AtomicInteger count = new AtomicInteger();
+            pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ScreenshotTranscoder-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return pool;
+    }
+
+    public int getMaxDimension() {
+        return maxDimension;
+    }
+
+    /**
+     * Scale screenshots down so that neither width nor height exceeds maxDimension, 0 to keep the original size
+     */
+    public void setMaxDimension(int maxDimension) {
+        this.maxDimension = maxDimension;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * Set image format name known to ImageIO, e.g. FORMAT_JPEG or FORMAT_PNG. Also used as the file extension.
+     */
+    public void setFormat(String format) {
+        this.format = format;
+    }
+
+    public float getQuality() {
+        return quality;
+    }
+
+    /**
+     * Set compression quality between 0 and 1, only used by lossy formats
+     */
+    public void setQuality(float quality) {
+        this.quality = quality;
+    }
+
+    public boolean isKeepOriginal() {
+        return keepOriginal;
+    }
+
+    /**
+     * Also write the PNG as received from the device
+     */
+    public void setKeepOriginal(boolean keepOriginal) {
+        this.keepOriginal = keepOriginal;
+    }
+
+    /**
+     * @return File the transcoded screenshot of target is written to, target with the extension of the format
+     */
+    public File outputFile(File target) {
+        return new File(FilenameUtils.removeExtension(target.getPath()) + "." + format);
+    }
+
+    /**
+     * Transcode screenshot and write it to outputFile(target)
+     *
+     * @return Written file, target if the screenshot could not be decoded and was written as is
+     */
+    File transcode(byte[] png, File target) throws IOException {
+        File output = outputFile(target);
+        if(keepOriginal) {
+            File original = output.equals(target) ? new File(FilenameUtils.removeExtension(target.getPath()) + "-original.png") : target;
+            FileUtils.writeByteArrayToFile(original, png);
+        }
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if(image == null || !writers.hasNext()) {
+            FileUtils.writeByteArrayToFile(target, png);
+            return target;
+        }
+        image = scale(image);
+
+        ImageWriter writer = writers.next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if(param.canWriteCompressed() && param.getCompressionTypes() != null) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionType(param.getCompressionTypes()[0]);
+            param.setCompressionQuality(quality);
+        }
+        FileUtils.forceMkdir(output.getAbsoluteFile().getParentFile());
+        if(output.exists() && !output.delete()) {
+            throw new IOException("Unable to overwrite " + output);
+        }
+        ImageOutputStream out = ImageIO.createImageOutputStream(output);
+        try {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+            out.close();
+        }
+        return output;
+    }
+
+    private BufferedImage scale(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean opaque = !FORMAT_PNG.equalsIgnoreCase(format);
+        if((maxDimension <= 0 || Math.max(width, height) <= maxDimension) && !(opaque && image.getColorModel().hasAlpha())) {
+            return image;
+        }
+        if(maxDimension > 0 && Math.max(width, height) > maxDimension) {
+            double scale = (double) maxDimension / Math.max(width, height);
+            width = Math.max(1, (int) Math.round(width * scale));
+            height = Math.max(1, (int) Math.round(height * scale));
+        }
+        // JPEG has no alpha channel, draw on an opaque image
+        BufferedImage scaled = new BufferedImage(width, height, opaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return scaled;
+    }
+}
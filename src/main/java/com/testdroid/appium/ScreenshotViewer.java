@@ -0,0 +1,217 @@
+package com.testdroid.appium;
+
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+import javax.swing.JFrame;
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+import javax.swing.WindowConstants;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Window showing the latest screenshot when testdroid.gui is enabled.
+ *
+ * One window is reused for all screenshots. show() only hands the screenshot over and returns immediately;
+ * decoding and scaling happen on a background thread and the window is updated on the event dispatch thread.
+ * The window is refreshed at most maxFps times per second, screenshots arriving faster replace each other and
+ * only the latest one is shown.
+ */
+public class ScreenshotViewer {
+
+    public static final int DEFAULT_MAX_FPS = 5;
+
+    // Part of the screen the window may cover, larger screenshots are scaled down
+    private static final double MAX_SCREEN_FRACTION = 0.9;
+
+    private static final Logger logger = LoggerFactory.getLogger(ScreenshotViewer.class);
+
+    private static ScreenshotViewer defaultViewer;
+
+    private final Object lock = new Object();
+    private Object latest; // byte[] or File, guarded by lock
+    private Thread decoder;
+    private volatile long minIntervalMs = 1000 / DEFAULT_MAX_FPS;
+    private volatile boolean closed;
+
+    // Accessed on the event dispatch thread only
+    private JFrame frame;
+    private ImagePanel panel;
+
+    public static synchronized ScreenshotViewer getDefault() {
+        if(defaultViewer == null) {
+            defaultViewer = new ScreenshotViewer();
+        }
+        return defaultViewer;
+    }
+
+    public void setMaxFps(int maxFps) {
+        this.minIntervalMs = 1000 / Math.max(1, maxFps);
+    }
+
+    /**
+     * Show screenshot, returns without waiting for it to be displayed
+     *
+     * @param png Screenshot as returned by getScreenshotAs(OutputType.BYTES)
+     */
+    public void show(byte[] png) {
+        offer(png);
+    }
+
+    /**
+     * Show screenshot file, returns without waiting for it to be displayed
+     */
+    public void show(File screenshot) {
+        offer(screenshot);
+    }
+
+    private void offer(Object screenshot) {
+        if(closed) {
+            return;
+        }
+        if(GraphicsEnvironment.isHeadless()) {
+            logger.warn("Screenshots can't be shown in a headless environment");
+            closed = true;
+            return;
+        }
+        synchronized (lock) {
+            latest = screenshot;
+            lock.notifyAll();
+            if(decoder == null) {
+                decoder = new Thread("ScreenshotViewer") {
+                    @Override
+                    public void run() {
+                        decodeLoop();
+                    }
+                };
+                decoder.setDaemon(true);
+                decoder.start();
+            }
+        }
+    }
+
+    private void decodeLoop() {
+        long lastShown = 0;
+        while(!closed) {
+            Object screenshot;
+            try {
+                synchronized (lock) {
+                    while(latest == null) {
+                        lock.wait();
+                    }
+                }
+                long wait = lastShown + minIntervalMs - System.currentTimeMillis();
+                if(wait > 0) {
+                    // Screenshots arriving meanwhile replace the one waiting
+                    Thread.sleep(wait);
+                }
+                synchronized (lock) {
+                    screenshot = latest;
+                    latest = null;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            lastShown = System.currentTimeMillis();
+            try {
+                BufferedImage image = screenshot instanceof File ? ImageIO.read((File) screenshot) : ImageIO.read(new ByteArrayInputStream((byte[]) screenshot));
+                if(image != null) {
+                    display(fitToScreen(image));
+                }
+            } catch (IOException e) {
+                logger.error("Failed decoding screenshot - test run will still continue", e);
+            }
+        }
+    }
+
+    private static BufferedImage fitToScreen(BufferedImage image) {
+        Rectangle bounds = GraphicsEnvironment.getLocalGraphicsEnvironment().getMaximumWindowBounds();
+        double scale = Math.min(bounds.width * MAX_SCREEN_FRACTION / image.getWidth(), bounds.height * MAX_SCREEN_FRACTION / image.getHeight());
+        if(scale >= 1) {
+            return image;
+        }
+        int width = Math.max(1, (int) (image.getWidth() * scale));
+        int height = Math.max(1, (int) (image.getHeight() * scale));
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return scaled;
+    }
+
+    private void display(final BufferedImage image) {
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                try { // lets catch everything so that test goes trough even if problem with GUI
+                    if(closed) {
+                        return;
+                    }
+                    if(frame == null) {
+                        frame = new JFrame("Testdroid screenshot");
+                        // Closing the window must not exit the test JVM
+                        frame.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+                        frame.addWindowListener(new WindowAdapter() {
+                            @Override
+                            public void windowClosed(WindowEvent e) {
+                                closed = true;
+                            }
+                        });
+                        panel = new ImagePanel();
+                        frame.add(panel);
+                    }
+                    boolean resized = panel.setImage(image);
+                    if(resized) {
+                        frame.pack();
+                    }
+                    if(!frame.isVisible()) {
+                        frame.setVisible(true);
+                    }
+                } catch (Exception ex) {
+                    logger.error("Failed displaying screenshot - test run will still continue", ex);
+                }
+            }
+        });
+    }
+
+    private static class ImagePanel extends JPanel {
+        private BufferedImage image;
+
+        /**
+         * @return true if the size of the panel changed
+         */
+        boolean setImage(BufferedImage image) {
+            boolean resized = this.image == null || this.image.getWidth() != image.getWidth() || this.image.getHeight() != image.getHeight();
+            this.image = image;
+            if(resized) {
+                setPreferredSize(new Dimension(image.getWidth(), image.getHeight()));
+            }
+            repaint();
+            return resized;
+        }
+
+        @Override
+        public void paintComponent(Graphics g) {
+            super.paintComponent(g);
+            if(image != null) {
+                g.drawImage(image, 0, 0, null);
+            }
+        }
+    }
+}
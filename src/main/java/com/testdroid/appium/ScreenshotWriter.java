@@ -0,0 +1,195 @@
+package com.testdroid.appium;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes screenshots to disk on background threads.
+ *
+ * Screenshots are taken as PNG bytes and written straight to the target file, so the test thread only waits for
+ * the capture itself. At most a fixed number of screenshots are held in memory; when writing falls behind, write()
+ * blocks until there is room.
+ */
+public class ScreenshotWriter {
+
+    public static final int DEFAULT_THREADS = 2;
+    public static final int DEFAULT_MAX_PENDING = 32;
+
+    private static final Logger logger = LoggerFactory.getLogger(ScreenshotWriter.class);
+
+    private static ScreenshotWriter defaultWriter;
+
+    private final ExecutorService executor;
+    private final Semaphore pending;
+    private final int maxPending;
+
+    public ScreenshotWriter(int threads, int maxPending) {
+        final AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ScreenshotWriter-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.pending = new Semaphore(maxPending);
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Shared writer, pending screenshots are flushed when the JVM exits
+     */
+    public static synchronized ScreenshotWriter getDefault() {
+        if(defaultWriter == null) {
+            defaultWriter = new ScreenshotWriter(DEFAULT_THREADS, DEFAULT_MAX_PENDING);
+            Runtime.getRuntime().addShutdownHook(new Thread("ScreenshotWriter-shutdown") {
+                @Override
+                public void run() {
+                    defaultWriter.close(10 * 1000L);
+                }
+            });
+        }
+        return defaultWriter;
+    }
+
+    /**
+     * Queue screenshot for writing, blocks while the maximum number of screenshots is pending
+     *
+     * @param png Screenshot as returned by getScreenshotAs(OutputType.BYTES)
+     * @param target File to write, parent directories are created
+     * @return Future yielding the written file
+     */
+    public Future<File> write(byte[] png, File target) throws InterruptedException {
+        return write(png, target, null, null);
+    }
+
+    /**
+     * Queue screenshot for writing, storing it as a reference if it duplicates the previous screenshot and
+     * transcoding it otherwise
+     *
+     * @param deduplicator Deduplicator of the client taking the screenshot, null to always write the screenshot
+     * @param transcoder Transcoder applied before writing, null to write the PNG as is. Screenshots are then
+     *            transcoded on the shared transcoder pool instead of the writer threads.
+     * @return Future yielding the written file, or the earlier screenshot this one duplicates
+     */
+    public Future<File> write(final byte[] png, final File target, final ScreenshotDeduplicator deduplicator, final ScreenshotTranscoder transcoder)
+            throws InterruptedException {
+        pending.acquire();
+        ExecutorService pool = transcoder != null ? ScreenshotTranscoder.getPool() : executor;
+        if(deduplicator == null) {
+            return submit(pool, new WriteTask(png, target, null, 0, transcoder));
+        }
+        // Tickets must be queued in the order they are taken, see ScreenshotDeduplicator
+        synchronized (deduplicator) {
+            return submit(pool, new WriteTask(png, target, deduplicator, deduplicator.nextTicket(), transcoder));
+        }
+    }
+
+    private Future<File> submit(ExecutorService pool, WriteTask task) {
+        try {
+            pool.execute(task);
+        } catch (RuntimeException e) {
+            // Rejected, e.g. after close(), the task gives back its permit and its turn when cancelled
+            task.cancel(false);
+            throw e;
+        }
+        return task;
+    }
+
+    /**
+     * Write screenshot, or a reference to the earlier screenshot it duplicates
+     *
+     * @return Written file, or the earlier screenshot this one duplicates
+     */
+    static File store(byte[] png, File target, ScreenshotDeduplicator deduplicator, long ticket, ScreenshotTranscoder transcoder) throws IOException {
+        if(deduplicator != null) {
+            File original = deduplicator.check(png, target, transcoder != null ? transcoder.outputFile(target) : target, ticket);
+            if(original != null) {
+                return original;
+            }
+        }
+        if(transcoder != null) {
+            return transcoder.transcode(png, target);
+        }
+        FileUtils.writeByteArrayToFile(target, png);
+        return target;
+    }
+
+    /**
+     * Write of one screenshot. Whichever comes first of running it and cancelling it before it runs returns the
+     * pending permit and the deduplicator turn, so a cancelled or rejected write never blocks later ones.
+     */
+    private class WriteTask extends FutureTask<File> {
+        private final ScreenshotDeduplicator deduplicator;
+        private final long ticket;
+        private final AtomicBoolean claimed;
+
+        WriteTask(final byte[] png, final File target, final ScreenshotDeduplicator deduplicator, final long ticket,
+                final ScreenshotTranscoder transcoder) {
+            this(png, target, deduplicator, ticket, transcoder, new AtomicBoolean());
+        }
+
+        private WriteTask(final byte[] png, final File target, final ScreenshotDeduplicator deduplicator, final long ticket,
+                final ScreenshotTranscoder transcoder, final AtomicBoolean claimed) {
+            super(new Callable<File>() {
+                public File call() throws IOException {
+                    if(!claimed.compareAndSet(false, true)) {
+                        return null;
+                    }
+                    try {
+                        File file = store(png, target, deduplicator, ticket, transcoder);
+                        logger.info("Screenshot stored to {}", file.getAbsolutePath());
+                        return file;
+                    } finally {
+                        pending.release();
+                    }
+                }
+            });
+            this.deduplicator = deduplicator;
+            this.ticket = ticket;
+            this.claimed = claimed;
+        }
+
+        @Override
+        protected void done() {
+            if(claimed.compareAndSet(false, true)) {
+                pending.release();
+                if(deduplicator != null) {
+                    deduplicator.skip(ticket);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop accepting screenshots and wait for the pending ones to be written
+     */
+    public void close(long timeoutMs) {
+        executor.shutdown();
+        try {
+            // Screenshots being transcoded run on the transcoder pool, wait for all permits to be returned
+            if(pending.tryAcquire(maxPending, timeoutMs, TimeUnit.MILLISECONDS)) {
+                // Give the permits back so a write after close() is rejected instead of blocking forever
+                pending.release(maxPending);
+            } else {
+                logger.warn("Screenshots still pending after {} ms", timeoutMs);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
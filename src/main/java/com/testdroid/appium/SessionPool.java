@@ -0,0 +1,282 @@
+package com.testdroid.appium;
+
+import io.appium.java_client.AppiumDriver;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of Appium sessions kept alive between test classes.
+ *
+ * Released sessions are kept for sessions with the same configuration and the application state is reset before
+ * handing them out again, which avoids device lookup and session setup for every test class. Sessions are quit
+ * when they have been idle or alive for too long, and when the JVM exits.
+ *
+ * The session is attached to the acquiring client, so its screenshot(), getTrackedRun() and quit() work on the
+ * pooled session. quit() of such a client returns the session to the pool like release() instead of ending it,
+ * the pool ends the session on eviction or close() without waiting for the artifact download of its run.
+ *
+ * Usage:
+ *
+ * <pre>
+ * &#064;BeforeClass
+ * public static void setUp() throws Exception {
+ *     client = new TestdroidAppiumClient();
+ *     ...
+ *     wd = SessionPool.getDefault().acquire(client);
+ * }
+ *
+ * &#064;AfterClass
+ * public static void tearDown() {
+ *     SessionPool.getDefault().release(wd);
+ * }
+ * </pre>
+ */
+public class SessionPool {
+
+    public enum ResetMode {
+        /** Hand out session as is */
+        NONE,
+        /** Close and launch the application */
+        RELAUNCH,
+        /** Reset the application, clearing its data */
+        RESET
+    }
+
+    public static final long DEFAULT_MAX_IDLE_MS = 5 * 60 * 1000L;
+    public static final long DEFAULT_MAX_LIFETIME_MS = 60 * 60 * 1000L;
+
+    private static final long EVICTION_INTERVAL_MS = 15 * 1000L;
+
+    private static final Logger logger = LoggerFactory.getLogger(SessionPool.class);
+
+    private static final List<SessionPool> OPEN_POOLS = new CopyOnWriteArrayList<SessionPool>();
+    private static boolean shutdownHookAdded;
+    private static SessionPool defaultPool;
+
+    private final long maxIdleMs;
+    private final long maxLifetimeMs;
+    private final List<PooledSession> sessions = new ArrayList<PooledSession>();
+    private final ScheduledExecutorService evictor;
+
+    private volatile ResetMode resetMode = ResetMode.RELAUNCH;
+
+    private boolean closed;
+
+    private static class PooledSession {
+        final String key;
+        final TestdroidAppiumClient client;
+        final AppiumDriver driver;
+        final long created = System.currentTimeMillis();
+        long released;
+        boolean inUse = true;
+
+        PooledSession(String key, TestdroidAppiumClient client, AppiumDriver driver) {
+            this.key = key;
+            this.client = client;
+            this.driver = driver;
+        }
+    }
+
+    public SessionPool(long maxIdleMs, long maxLifetimeMs) {
+        if(maxIdleMs <= 0 || maxLifetimeMs <= 0) {
+            throw new IllegalArgumentException("Idle time and lifetime must be positive");
+        }
+        this.maxIdleMs = maxIdleMs;
+        this.maxLifetimeMs = maxLifetimeMs;
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SessionPoolEvictor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long interval = Math.min(EVICTION_INTERVAL_MS, maxIdleMs);
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                evict();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        addToShutdownHook(this);
+    }
+
+    /**
+     * One hook closes all pools when the JVM exits
+     */
+    private static synchronized void addToShutdownHook(SessionPool pool) {
+        if(!shutdownHookAdded) {
+            Runtime.getRuntime().addShutdownHook(new Thread("SessionPoolShutdown") {
+                @Override
+                public void run() {
+                    for(SessionPool pool : OPEN_POOLS) {
+                        pool.close();
+                    }
+                }
+            });
+            shutdownHookAdded = true;
+        }
+        OPEN_POOLS.add(pool);
+    }
+
+    public static synchronized SessionPool getDefault() {
+        if(defaultPool == null) {
+            defaultPool = new SessionPool(DEFAULT_MAX_IDLE_MS, DEFAULT_MAX_LIFETIME_MS);
+        }
+        return defaultPool;
+    }
+
+    /**
+     * Set how application state is reset when a pooled session is reused. Default is RELAUNCH.
+     */
+    public void setResetMode(ResetMode resetMode) {
+        this.resetMode = resetMode;
+    }
+
+    /**
+     * Get a session for the client configuration, reusing an idle one if available
+     *
+     * The driver is started with the given client if no idle session matches. Either way the session is attached
+     * to the client.
+     */
+    public AppiumDriver acquire(TestdroidAppiumClient client) throws Exception {
+        synchronized (this) {
+            if(closed) {
+                throw new IllegalStateException("Session pool is closed");
+            }
+        }
+        String key = client.sessionKey();
+        PooledSession session;
+        while((session = takeIdle(key)) != null) {
+            try {
+                resetApp(session.driver);
+                client.attachPooledSession(this, session.client);
+                logger.info("Reusing pooled session {} for '{}'", session.driver.getSessionId(), client.getDeviceName());
+                return session.driver;
+            } catch (Exception e) {
+                logger.warn("Failed to reset pooled session {}, discarding it", session.driver.getSessionId(), e);
+                remove(session);
+                quit(session);
+            }
+        }
+
+        AppiumDriver driver;
+        if(TestdroidAppiumClient.APPIUM_PLATFORM_IOS.equalsIgnoreCase(client.lookupPlatformName())) {
+            driver = client.getIOSDriver();
+        } else {
+            driver = client.getAndroidDriver();
+        }
+        client.attachPooledSession(this, client);
+        synchronized (this) {
+            sessions.add(new PooledSession(key, client, driver));
+        }
+        return driver;
+    }
+
+    /**
+     * Return session to the pool. Sessions not acquired from this pool are ignored.
+     */
+    public void release(AppiumDriver driver) {
+        PooledSession expired = null;
+        synchronized (this) {
+            for(PooledSession session : sessions) {
+                if(session.driver == driver) {
+                    session.inUse = false;
+                    session.released = System.currentTimeMillis();
+                    if(closed || session.released - session.created >= maxLifetimeMs) {
+                        sessions.remove(session);
+                        expired = session;
+                    }
+                    break;
+                }
+            }
+        }
+        if(expired != null) {
+            quit(expired);
+        }
+    }
+
+    /**
+     * Quit all sessions, including the ones in use
+     */
+    public void close() {
+        List<PooledSession> toQuit;
+        synchronized (this) {
+            closed = true;
+            toQuit = new ArrayList<PooledSession>(sessions);
+            sessions.clear();
+        }
+        evictor.shutdownNow();
+        OPEN_POOLS.remove(this);
+        for(PooledSession session : toQuit) {
+            quit(session);
+        }
+    }
+
+    private synchronized PooledSession takeIdle(String key) {
+        long now = System.currentTimeMillis();
+        for(PooledSession session : sessions) {
+            if(!session.inUse && session.key.equals(key) && now - session.created < maxLifetimeMs) {
+                session.inUse = true;
+                return session;
+            }
+        }
+        return null;
+    }
+
+    private synchronized void remove(PooledSession session) {
+        sessions.remove(session);
+    }
+
+    private void evict() {
+        List<PooledSession> expired = new ArrayList<PooledSession>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            for(Iterator<PooledSession> i = sessions.iterator(); i.hasNext();) {
+                PooledSession session = i.next();
+                if(!session.inUse && (now - session.released >= maxIdleMs || now - session.created >= maxLifetimeMs)) {
+                    i.remove();
+                    expired.add(session);
+                }
+            }
+        }
+        for(PooledSession session : expired) {
+            logger.info("Evicting pooled session {}", session.driver.getSessionId());
+            quit(session);
+        }
+    }
+
+    private void resetApp(AppiumDriver driver) {
+        switch (resetMode) {
+        case RELAUNCH:
+            driver.closeApp();
+            driver.launchApp();
+            break;
+        case RESET:
+            driver.resetApp();
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Quit without waiting for the artifact download of the run, which would hold up the evicting, acquiring or
+     * exiting thread, the download goes on in the background while the JVM runs
+     */
+    private static void quit(PooledSession session) {
+        try {
+            session.client.quitSession(false);
+        } catch (Exception e) {
+            logger.warn("Failed to quit pooled session", e);
+        }
+    }
+}
@@ -1,23 +1,20 @@
 package com.testdroid.appium;
 
-import java.awt.Dimension;
-import java.awt.Graphics;
-import java.awt.Image;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.List;
-import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.imageio.ImageIO;
-import javax.swing.JFrame;
-import javax.swing.JPanel;
-
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
 import org.openqa.selenium.OutputType;
 import org.openqa.selenium.TakesScreenshot;
@@ -25,29 +22,15 @@ import org.openqa.selenium.remote.DesiredCapabilities;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.api.client.http.FileContent;
-import com.google.api.client.http.GenericUrl;
-import com.google.api.client.http.HttpHeaders;
-import com.google.api.client.http.HttpRequest;
-import com.google.api.client.http.HttpRequestFactory;
-import com.google.api.client.http.HttpRequestInitializer;
-import com.google.api.client.http.HttpResponse;
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.JsonObjectParser;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.Key;
-import com.testdroid.api.APIDeviceQueryBuilder;
 import com.testdroid.api.APIException;
 import com.testdroid.api.APIListResource;
 import com.testdroid.api.APIQueryBuilder;
 import com.testdroid.api.DefaultAPIClient;
-import com.testdroid.api.http.MultipartFormDataContent;
 import com.testdroid.api.model.APIDevice;
-import com.testdroid.api.model.APIDeviceRun;
 import com.testdroid.api.model.APIProject;
-import com.testdroid.api.model.APITestRun;
 import com.testdroid.api.model.APIUser;
 
 /**
@@ -62,9 +45,6 @@ public class TestdroidAppiumClient {
     public static final String CLOUD_APPIUM_URL = "http://appium.testdroid.com/wd/hub";
     public static final String APPIUM_UPLOAD_URL = "http://appium.testdroid.com/upload";
 
-    // File for testdroid properties that will be used if no environment variables found
-    private static final String TESTDROID_PROPERTIES = "testdroid.properties";
-
     // Environment variable names
     public static final String TESTDROID_CLOUD_URL = "testdroid.cloudUrl";
     public static final String TESTDROID_USERNAME = "testdroid.username";
@@ -74,6 +54,19 @@ public class TestdroidAppiumClient {
     public static final String TESTDROID_GUI = "testdroid.gui";
     public static final String TESTDROID_APPIUM_URL = "testdroid.appiumUrl";
     public static final String TESTDROID_APPIUM_UPLOAD_URL = "testdroid.appiumUploadUrl";
+    public static final String TESTDROID_UPLOAD_CACHE = "testdroid.uploadCache";
+    // JVM-wide setting, the last client created wins
+    public static final String TESTDROID_HTTP_MAX_CONNECTIONS = "testdroid.http.maxConnections";
+    public static final String TESTDROID_HTTP_CONNECT_TIMEOUT = "testdroid.http.connectTimeout";
+    public static final String TESTDROID_HTTP_READ_TIMEOUT = "testdroid.http.readTimeout";
+    public static final String TESTDROID_HTTP_GZIP = "testdroid.http.gzip";
+    public static final String TESTDROID_SCREENSHOT_DEDUP = "testdroid.screenshotDedup";
+    public static final String TESTDROID_SCREENSHOT_FORMAT = "testdroid.screenshotFormat";
+    public static final String TESTDROID_SCREENSHOT_MAX_DIMENSION = "testdroid.screenshotMaxDimension";
+    public static final String TESTDROID_ARTIFACT_DIR = "testdroid.artifactDir";
+    public static final String TESTDROID_ELEMENT_CACHE = "testdroid.elementCache";
+    public static final String TESTDROID_COMMAND_RETRIES = "testdroid.commandRetries";
+    public static final String TESTDROID_HEDGE_PERCENTILE = "testdroid.hedgePercentile";
     // Appium constants
     public static final String APPIUM_PLATFORM_IOS = "iOS";
     public static final String APPIUM_PLATFORM_ANDROID = "Android";
@@ -91,32 +84,50 @@ public class TestdroidAppiumClient {
 
     // @TODO add rest of platforms
 
-    static final HttpTransport HTTP_TRANSPORT = new NetHttpTransport();
     static final JsonFactory JSON_FACTORY = new JacksonFactory();
 
     private static final Logger logger = LoggerFactory.getLogger(TestdroidAppiumClient.class);
 
+    // How long quit() waits for the test run to finish and its artifacts to be downloaded
+    private static final long ARTIFACT_WAIT_MS = 15 * 60 * 1000L;
+
+    // Runs the independent steps of session setup concurrently
+    private static final ExecutorService BOOTSTRAP_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "SessionBootstrap-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
     private TestdroidAppiumDriverAndroid androidDriver;
 
     private TestdroidAppiumDriverIos iOSdriver;
 
-    private static DefaultAPIClient api;
+    private DefaultAPIClient api;
 
     private static boolean guiEnabled = false;
 
-    private static Thread deviceRunMonitorThread;
-
-    private ScreenshotDisplay screenshotDisplay = null;
+    private RunStatusPoller.TrackedRun trackedRun;
 
     private int deviceWaitTime = 120; // Optional, sets time to wait when device is in use, use 0 for no wait time
     private boolean signAppFile = true; // Optional, if set to false app file will not be resigned
+    private boolean uploadCacheEnabled = true; // Optional, if set to false app file is uploaded on every run
+    private UploadProgressListener uploadProgressListener; // Optional, progress is logged by default
+    private TestdroidHttpTransport httpTransport = new TestdroidHttpTransport();
+    private ScreenshotDeduplicator screenshotDeduplicator; // Optional, if set duplicate screenshots are stored as references
+    private ScreenshotTranscoder screenshotTranscoder; // Optional, if set screenshots are downscaled and re-encoded
+    private File artifactDirectory; // Optional, if set result-data.zip of each device run is downloaded here
+    private boolean elementCacheEnabled = false; // Optional, if set to true drivers remember found elements, see ElementCache
+    private int commandRetries = CommandRetryPolicy.DEFAULT_MAX_RETRIES; // Optional, retries of read-only commands, 0 disables
+    private double hedgePercentile = 0; // Optional, if set screenshots and page source slower than this percentile are hedged
 
     // Testdroid runtime properties
 
-    private Properties testdroidProperties;
-
     private URL cloudUrl;
     private URL appiumUploadUrl;
 
@@ -154,6 +165,8 @@ public class TestdroidAppiumClient {
     private String browserName;
     private boolean iOSDriverUsed;
     private boolean androidDriverUsed;
+    private SessionPool sessionPool; // Pool owning the session, null if not pooled
+    private APIDevice reservedDevice; // Device reserved by DeviceScheduler, null if running locally or after quit
 
     /**
      * Constructor that configures the client using defaults and environment variables
@@ -197,6 +210,76 @@ public class TestdroidAppiumClient {
         deviceName = getProperty(TESTDROID_DEVICE);
         automationName = getProperty(APPIUM_AUTOMATION_NAME);
 
+        String sUploadCache = getProperty(TESTDROID_UPLOAD_CACHE);
+        if(sUploadCache != null && ("false".equals(sUploadCache.toLowerCase()) || "0".equals(sUploadCache))) {
+            uploadCacheEnabled = false;
+        }
+
+        // JVM-wide, see TestdroidHttpTransport.setMaxConnectionsPerHost
+        Integer maxConnections = getIntProperty(TESTDROID_HTTP_MAX_CONNECTIONS);
+        if(maxConnections != null) {
+            TestdroidHttpTransport.setMaxConnectionsPerHost(maxConnections);
+        }
+        Integer connectTimeout = getIntProperty(TESTDROID_HTTP_CONNECT_TIMEOUT);
+        if(connectTimeout != null) {
+            httpTransport.setConnectTimeoutMs(connectTimeout);
+        }
+        Integer readTimeout = getIntProperty(TESTDROID_HTTP_READ_TIMEOUT);
+        if(readTimeout != null) {
+            httpTransport.setReadTimeoutMs(readTimeout);
+        }
+        String sGzip = getProperty(TESTDROID_HTTP_GZIP);
+        if(sGzip != null && ("true".equals(sGzip.toLowerCase()) || "1".equals(sGzip))) {
+            httpTransport.setCompressRequests(true);
+        }
+
+        String sScreenshotDedup = getProperty(TESTDROID_SCREENSHOT_DEDUP);
+        if(sScreenshotDedup != null) {
+            if("true".equals(sScreenshotDedup.toLowerCase())) {
+                setScreenshotDedupThreshold(ScreenshotDeduplicator.DEFAULT_THRESHOLD);
+            } else if(!"false".equals(sScreenshotDedup.toLowerCase())) {
+                Integer threshold = getIntProperty(TESTDROID_SCREENSHOT_DEDUP);
+                if(threshold != null) {
+                    setScreenshotDedupThreshold(threshold);
+                }
+            }
+        }
+
+        String sScreenshotFormat = getProperty(TESTDROID_SCREENSHOT_FORMAT);
+        Integer screenshotMaxDimension = getIntProperty(TESTDROID_SCREENSHOT_MAX_DIMENSION);
+        if(sScreenshotFormat != null || screenshotMaxDimension != null) {
+            screenshotTranscoder = new ScreenshotTranscoder();
+            if(sScreenshotFormat != null) {
+                screenshotTranscoder.setFormat(sScreenshotFormat);
+            }
+            if(screenshotMaxDimension != null) {
+                screenshotTranscoder.setMaxDimension(screenshotMaxDimension);
+            }
+        }
+
+        String sArtifactDir = getProperty(TESTDROID_ARTIFACT_DIR);
+        if(sArtifactDir != null) {
+            artifactDirectory = new File(sArtifactDir);
+        }
+
+        String sElementCache = getProperty(TESTDROID_ELEMENT_CACHE);
+        if(sElementCache != null && ("true".equals(sElementCache.toLowerCase()) || "1".equals(sElementCache))) {
+            elementCacheEnabled = true;
+        }
+
+        Integer retries = getIntProperty(TESTDROID_COMMAND_RETRIES);
+        if(retries != null) {
+            commandRetries = retries;
+        }
+        String sHedgePercentile = getProperty(TESTDROID_HEDGE_PERCENTILE);
+        if(sHedgePercentile != null) {
+            try {
+                hedgePercentile = Double.parseDouble(sHedgePercentile.trim());
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring {}={}, not a number", TESTDROID_HEDGE_PERCENTILE, sHedgePercentile);
+            }
+        }
+
         String sGuiEnabled = getProperty(TESTDROID_GUI);
         if(sGuiEnabled != null && ("true".equals(sGuiEnabled.toLowerCase()) || "1".equals(sGuiEnabled))) {
             guiEnabled = true;
@@ -215,35 +298,33 @@ public class TestdroidAppiumClient {
     }
 
     /**
-     * Get property from environment or from testdroid.properties. Environment overrides.
+     * Get property from system properties, environment or testdroid.properties files, see TestdroidConfig
      *
      * @param key
-     * @return
+     * @return Value or null if not set
      */
-    public synchronized String getProperty(String key) {
-        try {
-            if(testdroidProperties == null) {
-                testdroidProperties = new Properties();
-                File file = new File(TESTDROID_PROPERTIES);
-                if(file.exists()) {
-                    logger.info("Loading default properties from {}", TESTDROID_PROPERTIES);
-                    testdroidProperties.load(new FileInputStream(new File(TESTDROID_PROPERTIES)));
-                }
-            }
-        } catch (IOException e) {
-            logger.error("Failed loading {}", TESTDROID_PROPERTIES, e);
+    public String getProperty(String key) {
+        return TestdroidConfig.get().get(key);
+    }
+
+    /**
+     * @return Integer value of the property, null if not set or not a number
+     */
+    private Integer getIntProperty(String key) {
+        String value = getProperty(key);
+        if(value == null) {
+            return null;
         }
-        String value = System.getProperty(key);
-        if(StringUtils.isEmpty(value)) {
-            value = testdroidProperties.getProperty(key);
+        try {
+            return Integer.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Ignoring {}={}, not a number", key, value);
+            return null;
         }
-        return value;
     }
 
-    private synchronized static DefaultAPIClient getAPI(String cloudUrl, String username, String password) {
-        if(api == null) {
-            api = new DefaultAPIClient(cloudUrl, username, password);
-        }
+    private DefaultAPIClient getAPI(String cloudUrl, String username, String password) {
+        api = ApiClientPool.getDefault().get(cloudUrl, username, password);
         return api;
     }
 
@@ -295,6 +376,102 @@ public class TestdroidAppiumClient {
         this.signAppFile = sign;
     }
 
+    /**
+     * Enable or disable reusing file UUIDs of earlier uploads of the same application file. Enabled by default.
+     */
+    public void setUploadCacheEnabled(boolean uploadCacheEnabled) {
+        this.uploadCacheEnabled = uploadCacheEnabled;
+    }
+
+    public boolean isUploadCacheEnabled() {
+        return uploadCacheEnabled;
+    }
+
+    /**
+     * Store screenshots that look the same as the previous screenshot as references, see ScreenshotDeduplicator
+     *
+     * @param threshold Maximum number of differing hash bits of duplicates, negative to disable deduplication
+     */
+    public void setScreenshotDedupThreshold(int threshold) {
+        screenshotDeduplicator = threshold >= 0 ? new ScreenshotDeduplicator(threshold) : null;
+    }
+
+    public ScreenshotTranscoder getScreenshotTranscoder() {
+        return screenshotTranscoder;
+    }
+
+    /**
+     * Downscale and re-encode screenshots before writing them, null to write them as received
+     */
+    public void setScreenshotTranscoder(ScreenshotTranscoder screenshotTranscoder) {
+        this.screenshotTranscoder = screenshotTranscoder;
+    }
+
+    public File getArtifactDirectory() {
+        return artifactDirectory;
+    }
+
+    /**
+     * Download result-data.zip of the device run to directory once the test run finishes, see ArtifactDownloader.
+     * quit() then waits for the run to finish and the download to complete.
+     */
+    public void setArtifactDirectory(File artifactDirectory) {
+        this.artifactDirectory = artifactDirectory;
+    }
+
+    public boolean isElementCacheEnabled() {
+        return elementCacheEnabled;
+    }
+
+    /**
+     * Enable element cache of drivers created after this call, see ElementCache
+     */
+    public void setElementCacheEnabled(boolean elementCacheEnabled) {
+        this.elementCacheEnabled = elementCacheEnabled;
+    }
+
+    public int getCommandRetries() {
+        return commandRetries;
+    }
+
+    /**
+     * Retry read-only commands of drivers created after this call this many times on connection failures, see
+     * CommandRetryPolicy. 0 disables retrying.
+     */
+    public void setCommandRetries(int commandRetries) {
+        this.commandRetries = commandRetries;
+    }
+
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * Hedge screenshots and page source of drivers created after this call when slower than this latency
+     * percentile, e.g. 95, see CommandRetryPolicy. 0, the default, disables hedging.
+     */
+    public void setHedgePercentile(double hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    public TestdroidHttpTransport getHttpTransport() {
+        return httpTransport;
+    }
+
+    /**
+     * Set HTTP settings used for application uploads
+     */
+    public void setHttpTransport(TestdroidHttpTransport httpTransport) {
+        this.httpTransport = httpTransport;
+    }
+
+    /**
+     * Set listener for application upload progress. Progress is logged if not set.
+     */
+    public void setUploadProgressListener(UploadProgressListener uploadProgressListener) {
+        this.uploadProgressListener = uploadProgressListener;
+    }
+
     /**
      * Set Testdroid Cloud project name. Will be automatically created in cloud if does not exist.
      */
@@ -451,34 +628,128 @@ public class TestdroidAppiumClient {
         if(appFile == null) {
             throw new Exception("appFile is null");
         }
-        logger.info("Uploading application {}, {} bytes", appFile.getAbsolutePath(), appFile.length());
-
-        final HttpHeaders headers = new HttpHeaders().setBasicAuthentication(username, password);
-
-        HttpRequestFactory requestFactory = HTTP_TRANSPORT.createRequestFactory(new HttpRequestInitializer() {
-            public void initialize(HttpRequest request) {
-                request.setParser(new JsonObjectParser(JSON_FACTORY));
-                request.setHeaders(headers);
-            }
-        });
-        MultipartFormDataContent multipartContent = new MultipartFormDataContent();
-        FileContent fileContent = new FileContent("application/octet-stream", appFile);
+        return uploadFile(uploadCacheKey());
+    }
 
-        MultipartFormDataContent.Part filePart = new MultipartFormDataContent.Part("file", fileContent);
-        multipartContent.addPart(filePart);
+    /**
+     * @param cacheKey Upload cache key of appFile, null if the upload is not to be cached
+     */
+    private String uploadFile(String cacheKey) throws Exception {
+        logger.info("Uploading application {}, {} bytes", appFile.getAbsolutePath(), appFile.length());
 
-        HttpRequest request = requestFactory.buildPostRequest(new GenericUrl(appiumUploadUrl), multipartContent);
-        HttpResponse response = request.execute();
+        AppUploader uploader = new AppUploader(httpTransport, JSON_FACTORY, appiumUploadUrl, username, password);
+        if(uploadProgressListener != null) {
+            uploader.setProgressListener(uploadProgressListener);
+        }
+        AppiumResponse appiumResponse = uploader.upload(appFile);
 
         // Extract file UUID
-        AppiumResponse appiumResponse = request.execute().parseAs(AppiumResponse.class);
         String fileUUID = appiumResponse.uploadStatus.fileInfo.file;
         logger.info("File UUID: '{}'", fileUUID);
 
+        if(cacheKey != null) {
+            UploadCache.getDefault().put(cacheKey, fileUUID, appiumResponse.uploadStatus.expiresIn);
+        }
+
+        return fileUUID;
+    }
+
+    // SimpleDateFormat is not thread safe and clients may be set up concurrently
+    private static String formatDate(Date date) {
+        synchronized (DATE_FORMAT) {
+            return DATE_FORMAT.format(date);
+        }
+    }
+
+    boolean isLocalAppium() {
+        return appiumUrl.getHost().equals("localhost");
+    }
+
+    /**
+     * Key identifying sessions that are interchangeable, used for pooling drivers
+     */
+    String sessionKey() {
+        return StringUtils.join(new Object[] { appiumUrl, username, deviceName, platformName, testdroidTarget, automationName, browserName,
+                appFile != null ? appFile.getAbsolutePath() : fileUUID, bundleId, androidPackage, androidActivity, signAppFile }, '|');
+    }
+
+    /**
+     * Make sure fileUUID is set, reusing an earlier upload of appFile or uploading it
+     *
+     * @return File UUID
+     */
+    String resolveFileUUID() throws Exception {
+        if(fileUUID == null) {
+            if(appFile == null) {
+                throw new Exception("appFile is null");
+            }
+            // Hash the file once for both the lookup and storing the new upload
+            String cacheKey = uploadCacheKey();
+            fileUUID = cacheKey != null ? UploadCache.getDefault().get(cacheKey) : null;
+            if(fileUUID == null) {
+                fileUUID = uploadFile(cacheKey);
+            } else {
+                logger.info("{} already uploaded as '{}', no need to upload application", appFile.getAbsolutePath(), fileUUID);
+            }
+        } else {
+            logger.info("File UUID '{}' given, no need to upload application", fileUUID);
+        }
         return fileUUID;
     }
 
-    private DesiredCapabilities setCommonCapabilities() throws Exception {
+    /**
+     * Create a new client with the same configuration as this one for another device
+     *
+     * Test run name and driver state are not copied, so every device gets its own test run and session.
+     */
+    public TestdroidAppiumClient forDevice(String deviceName) throws MalformedURLException {
+        TestdroidAppiumClient client = new TestdroidAppiumClient();
+        client.deviceWaitTime = deviceWaitTime;
+        client.signAppFile = signAppFile;
+        client.uploadCacheEnabled = uploadCacheEnabled;
+        client.uploadProgressListener = uploadProgressListener;
+        client.httpTransport = httpTransport;
+        if(screenshotDeduplicator != null) {
+            client.setScreenshotDedupThreshold(screenshotDeduplicator.getThreshold());
+        }
+        client.screenshotTranscoder = screenshotTranscoder;
+        client.artifactDirectory = artifactDirectory;
+        client.elementCacheEnabled = elementCacheEnabled;
+        client.commandRetries = commandRetries;
+        client.hedgePercentile = hedgePercentile;
+        client.cloudUrl = cloudUrl;
+        client.appiumUploadUrl = appiumUploadUrl;
+        client.username = username;
+        client.password = password;
+        client.projectName = projectName;
+        client.testdroidDescription = testdroidDescription;
+        client.testdroidTarget = testdroidTarget;
+        client.testdroidLocale = testdroidLocale;
+        client.testdroidJUnitWaitTime = testdroidJUnitWaitTime;
+        client.bundleId = bundleId;
+        client.androidPackage = androidPackage;
+        client.androidActivity = androidActivity;
+        client.appFile = appFile;
+        client.fileUUID = fileUUID;
+        client.appiumUrl = appiumUrl;
+        client.platformName = platformName;
+        client.automationName = automationName;
+        client.browserName = browserName;
+        client.deviceName = deviceName;
+        return client;
+    }
+
+    /**
+     * @return Upload cache key of appFile, null if the upload cache is disabled or the file could not be hashed
+     */
+    private String uploadCacheKey() {
+        if(!uploadCacheEnabled || appFile == null) {
+            return null;
+        }
+        return UploadCache.getDefault().key(appFile, appiumUploadUrl.toString(), username);
+    }
+
+    DesiredCapabilities setCommonCapabilities() throws Exception {
         // Common desired capabilities
         DesiredCapabilities capabilities = new DesiredCapabilities();
 
@@ -516,7 +787,7 @@ public class TestdroidAppiumClient {
         capabilities.setCapability("deviceName", deviceName);
 
         // Local vs cloud
-        if(appiumUrl.getHost().equals("localhost")) {
+        if(isLocalAppium()) {
             logger.info("Initializing Appium, server URL {}", appiumUrl);
             capabilities.setCapability("platformName", getPlatformName());
             capabilities.setCapability("automationName", automationName);
@@ -524,8 +795,29 @@ public class TestdroidAppiumClient {
         } else {
             logger.info("Cloud URL {}, username {}", cloudUrl.toString(), username);
             logger.info("Looking for device '{}'", deviceName);
-            getAPI(cloudUrl.toString(), username, password);
-            APIDevice device = getDevice(deviceName);
+            final DefaultAPIClient api = getAPI(cloudUrl.toString(), username, password);
+
+            // Upload and project lookup do not depend on the device, run them while waiting for it
+            Future<String> fileUUIDFuture = BOOTSTRAP_EXECUTOR.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    return resolveFileUUID();
+                }
+            });
+            Future<APIProject> projectFuture = BOOTSTRAP_EXECUTOR.submit(new Callable<APIProject>() {
+                public APIProject call() throws Exception {
+                    return findProject(api.me());
+                }
+            });
+
+            APIDevice device;
+            try {
+                device = getDevice(deviceName);
+                reservedDevice = device;
+            } catch (Exception e) {
+                fileUUIDFuture.cancel(true);
+                projectFuture.cancel(true);
+                throw e;
+            }
             APIDevice.OsType osType = device.getOsType();
             int APILevel = device.getSoftwareVersion().getApiLevel();
             setPlatformName(osType.getDisplayName());
@@ -545,13 +837,9 @@ public class TestdroidAppiumClient {
             capabilities.setCapability("platformName", getPlatformName());
             capabilities.setCapability("testdroid_target", testdroidTarget);
 
-            if(fileUUID == null) {
-                fileUUID = uploadFile();
-            } else {
-                logger.info("File UUID '{}' given, no need to upload application", fileUUID);
-            }
+            await(fileUUIDFuture);
 
-            final String finalTestRunName = testRunName != null ? testRunName : String.format("%s %s", deviceName, DATE_FORMAT.format(new Date()));
+            final String finalTestRunName = testRunName != null ? testRunName : String.format("%s %s", deviceName, formatDate(new Date()));
 
             logger.info("Project: {}", projectName);
             logger.info("Test run: {}", finalTestRunName);
@@ -559,7 +847,8 @@ public class TestdroidAppiumClient {
             capabilities.setCapability("testdroid_description", testdroidDescription);
             capabilities.setCapability("testdroid_testrun", finalTestRunName);
             capabilities.setCapability("testdroid_app", fileUUID);
-            capabilities.setCapability("testdroid_device", deviceName);
+            // The device picked, deviceName may be a search query matching other models too
+            capabilities.setCapability("testdroid_device", device.getDisplayName());
             capabilities.setCapability("testdroid_target", testdroidTarget);
             if(StringUtils.isNotEmpty(testdroidLocale)) {
                 capabilities.setCapability("testdroid_locale", testdroidLocale);
@@ -571,65 +860,61 @@ public class TestdroidAppiumClient {
             capabilities.setCapability(TestdroidAppiumDriver.CAPABILITY_TESTDROID_USERNAME, username);
             capabilities.setCapability(TestdroidAppiumDriver.CAPABILITY_TESTDROID_PASSWORD, password);
 
-            deviceRunMonitorThread = new Thread(new Runnable() {
-                APIUser me = null;
-
-                public void run() {
-
-                    Thread.currentThread().setName("DeviceRunMonitor");
-                    Logger logger = LoggerFactory.getLogger(Thread.currentThread().getName());
-                    boolean running = true;
-                    try {
-                        me = api.me();
-                        APIProject project = null;
-                        while(running) {
-                            if(project == null) {
-                                project = getProject();
-                                if(project != null) {
-                                    logger.info("Found project: #{} {}", project.getId(), project.getName());
-                                }
-                            }
-                            if(project != null) {
-                                APIListResource<APITestRun> testRunResource = project.getTestRunsResource(new APIQueryBuilder().offset(0).limit(10).search(finalTestRunName));
-                                java.util.List<APITestRun> testRuns = testRunResource.getEntity().getData();
-                                if(testRuns.size() > 0) {
-                                    APITestRun testRun = testRuns.get(0);
-                                    logger.info("{}: {}", testRun.getDisplayName(), testRun.getState().toString());
-                                    APIListResource<APIDeviceRun> deviceRunsResource = testRun.getDeviceRunsResource();
-                                    List<APIDeviceRun> deviceRunList = deviceRunsResource.getEntity().getData();
-                                    for(APIDeviceRun deviceRun : deviceRunList) {
-                                        logger.info("{} #{} {}/api/v2/users/{}/projects/{}/runs/{}/device-runs/{}/result-data.zip", deviceRun.getDeviceName(), deviceRun.getId(), cloudUrl.toString(),
-                                                me.getId(), project.getId(), testRun.getId(), deviceRun.getId());
-                                    }
-                                }
-                                Thread.sleep(30000);
-                            }
-                        }
-                    } catch (APIException apiex) {
-                        logger.error("Failed API query, aborting", apiex);
-                    } catch (InterruptedException ex) {
-                        logger.info("Interrupted - stopping");
-                    }
-                }
-
-                private APIProject getProject() throws APIException {
-                    APIListResource<APIProject> projectsResource = me.getProjectsResource(new APIQueryBuilder().offset(0).limit(10).search(projectName));
-                    java.util.List<APIProject> projects = projectsResource.getEntity().getData();
-                    if(projects.size() > 0) {
-                        return projects.get(0);
-                    } else {
-                        return null;
-                    }
-                }
-
-            });
-            deviceRunMonitorThread.start();
+            trackedRun = RunStatusPoller.getDefault().track(api, cloudUrl.toString(), projectName, finalTestRunName, projectFuture);
+            if(artifactDirectory != null) {
+                ArtifactDownloader.getDefault().register(trackedRun, artifactDirectory, username, password, httpTransport);
+            }
 
             logger.info("Initializing Appium, server URL {}, user {}", appiumUrl, username);
         }
         return capabilities;
     }
 
+    /**
+     * Look up the platform of the device from the device catalog, so the driver can be picked before the session
+     * is started
+     *
+     * @return Platform name of the device, the configured one when running locally or no device matches
+     */
+    String lookupPlatformName() throws APIException {
+        if(isLocalAppium()) {
+            return platformName;
+        }
+        java.util.List<APIDevice> devices = DeviceCatalog.forClient(getAPI(cloudUrl.toString(), username, password)).find(deviceName);
+        APIDevice match = devices.isEmpty() ? null : devices.get(0);
+        for(APIDevice device : devices) {
+            if(deviceName.equalsIgnoreCase(device.getDisplayName())) {
+                match = device;
+                break;
+            }
+        }
+        return match != null && match.getOsType() != null ? match.getOsType().getDisplayName() : platformName;
+    }
+
+    /**
+     * @return Project matching projectName or null if not created yet
+     */
+    private APIProject findProject(APIUser me) throws APIException {
+        APIListResource<APIProject> projectsResource = me.getProjectsResource(new APIQueryBuilder().offset(0).limit(10).search(projectName));
+        java.util.List<APIProject> projects = projectsResource.getEntity().getData();
+        if(projects.size() > 0) {
+            return projects.get(0);
+        } else {
+            return null;
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
     /**
      * Initialize Testdroid Cloud Appium session
      *
@@ -640,48 +925,63 @@ public class TestdroidAppiumClient {
      */
     // @TODO Refactor to use proper exceptions not generic one
     public TestdroidAppiumDriverIos getIOSDriver() throws Exception {
-        DesiredCapabilities capabilities = setCommonCapabilities();
-        iOSdriver = new TestdroidAppiumDriverIos(appiumUrl, capabilities);
+        try {
+            DesiredCapabilities capabilities = setCommonCapabilities();
+            iOSdriver = new TestdroidAppiumDriverIos(appiumUrl, capabilities);
+        } catch (Exception e) {
+            releaseDevice();
+            untrackRun();
+            throw e;
+        }
+        if(reservedDevice != null) {
+            DeviceScheduler.sessionStarted(reservedDevice);
+        }
+        iOSdriver.setElementCacheEnabled(elementCacheEnabled);
+        iOSdriver.setCommandRetryPolicy(createCommandRetryPolicy());
         logger.info("Appium connected at {}", appiumUrl);
         this.iOSDriverUsed = true;
         return iOSdriver;
     }
 
     public TestdroidAppiumDriverAndroid getAndroidDriver() throws Exception {
-        DesiredCapabilities capabilities = setCommonCapabilities();
-        androidDriver = new TestdroidAppiumDriverAndroid(appiumUrl, capabilities);
+        try {
+            DesiredCapabilities capabilities = setCommonCapabilities();
+            androidDriver = new TestdroidAppiumDriverAndroid(appiumUrl, capabilities);
+        } catch (Exception e) {
+            releaseDevice();
+            untrackRun();
+            throw e;
+        }
+        if(reservedDevice != null) {
+            DeviceScheduler.sessionStarted(reservedDevice);
+        }
+        androidDriver.setElementCacheEnabled(elementCacheEnabled);
+        androidDriver.setCommandRetryPolicy(createCommandRetryPolicy());
         logger.info("Appium connected at {}", appiumUrl);
         this.androidDriverUsed = true;
         return androidDriver;
     }
 
+    private CommandRetryPolicy createCommandRetryPolicy() {
+        if(commandRetries <= 0 && hedgePercentile <= 0) {
+            return null;
+        }
+        CommandRetryPolicy policy = new CommandRetryPolicy(Math.max(0, commandRetries), CommandRetryPolicy.DEFAULT_BACKOFF_MS);
+        policy.setHedgePercentile(hedgePercentile);
+        return policy;
+    }
+
+    /**
+     * Get a free device, waiting for one if all of them are busy. The device stays reserved for this JVM until
+     * released, see DeviceScheduler.
+     */
     public APIDevice getDevice(String deviceName) throws Exception {
         APIUser me = null;
         APIDevice device;
         try {
             me = api.me();
             logger.info("Connected to Testdroid Cloud with account {} {}", me.getName(), me.getEmail());
-            APIListResource<APIDevice> devicesResource = api.getDevices(new APIDeviceQueryBuilder().search(deviceName));
-            java.util.List<APIDevice> devices = devicesResource.getEntity().getData();
-            if(devices.size() == 0) {
-                logger.error("Unable to find device '{}'", deviceName);
-                throw new Exception("No device found");
-            }
-            device = devices.get(0);
-            int sleepTime = 10;
-            while(device.isLocked() && deviceWaitTime > 0) {
-                logger.info("All devices are in use right now, waiting for {} seconds...", deviceWaitTime);
-                Thread.sleep(sleepTime * 1000);
-                setDeviceWaitTime(deviceWaitTime - sleepTime);
-                devicesResource = api.getDevices(new APIDeviceQueryBuilder().search(deviceName));
-                device = devicesResource.getEntity().getData().get(0);
-            }
-            if(device.isLocked()) {
-                String errorMsg = String.format("Every '%s' is busy at the moment", deviceName);
-                logger.error(errorMsg);
-                throw new Exception(errorMsg);
-            }
-
+            device = new DeviceScheduler(api).acquire(deviceName, deviceWaitTime * 1000L);
             logger.info("Found device! ID {}", device.getId());
             return device;
 
@@ -691,34 +991,112 @@ public class TestdroidAppiumClient {
         }
     }
 
+    /**
+     * @return Test run tracked by the run status poller, null before the session is started or when running locally
+     */
+    public RunStatusPoller.TrackedRun getTrackedRun() {
+        return trackedRun;
+    }
+
+    /**
+     * Quit the session, or return it to the pool if it was acquired from a SessionPool
+     */
     public void quit() {
+        if(sessionPool != null) {
+            sessionPool.release(iOSDriverUsed ? iOSdriver : androidDriver);
+            return;
+        }
+        quitSession(true);
+    }
+
+    /**
+     * Quit the session, also when it belongs to a pool
+     *
+     * @param awaitArtifacts Wait for the artifact download of the run if testdroid.artifactDir is set, otherwise
+     *            the run stays tracked so the download happens in the background
+     */
+    void quitSession(boolean awaitArtifacts) {
         logger.info("Quitting Appium driver");
-        if(deviceRunMonitorThread != null) {
-            deviceRunMonitorThread.interrupt();
+        try {
+            if(iOSDriverUsed) {
+                iOSdriver.quit();
+            } else {
+                androidDriver.quit();
+            }
+        } finally {
+            releaseDevice();
+            if(awaitArtifacts) {
+                awaitArtifacts();
+                untrackRun();
+            } else if(artifactDirectory == null) {
+                untrackRun();
+            }
         }
-        if(iOSDriverUsed) {
-            iOSdriver.quit();
-        } else {
-            androidDriver.quit();
+    }
+
+    /**
+     * Wait for the run to finish and its results to be downloaded, the run is polled only until quit() returns
+     */
+    private void awaitArtifacts() {
+        if(artifactDirectory == null || trackedRun == null) {
+            return;
+        }
+        logger.info("Waiting for test run '{}' to finish to download its results", trackedRun.getTestRunName());
+        try {
+            ArtifactDownloader.getDefault().awaitRun(trackedRun, ARTIFACT_WAIT_MS);
+        } catch (TimeoutException e) {
+            logger.warn("Results of test run '{}' not downloaded: {}", trackedRun.getTestRunName(), e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void untrackRun() {
+        if(trackedRun != null) {
+            RunStatusPoller.getDefault().untrack(trackedRun);
+            if(artifactDirectory != null) {
+                ArtifactDownloader.getDefault().unregister(trackedRun);
+            }
+        }
+    }
+
+    private void releaseDevice() {
+        if(reservedDevice != null) {
+            DeviceScheduler.release(reservedDevice);
+            reservedDevice = null;
         }
     }
 
+    /**
+     * Use the session started by owner, which may be this client, as the session of this client
+     */
+    void attachPooledSession(SessionPool pool, TestdroidAppiumClient owner) {
+        iOSdriver = owner.iOSdriver;
+        androidDriver = owner.androidDriver;
+        iOSDriverUsed = owner.iOSDriverUsed;
+        androidDriverUsed = owner.androidDriverUsed;
+        trackedRun = owner.trackedRun;
+        sessionPool = pool;
+    }
+
+    /**
+     * Take screenshot
+     *
+     * @return Written file, or the earlier screenshot this one duplicates when deduplication is enabled. The
+     *         extension differs from name when screenshots are transcoded.
+     */
     public File screenshot(String name) {
         logger.info("Taking screenshot...");
-        File scrFile;
-        if(iOSDriverUsed) {
-            scrFile = ((TakesScreenshot) iOSdriver).getScreenshotAs(OutputType.FILE);
-        } else {
-            scrFile = ((TakesScreenshot) androidDriver).getScreenshotAs(OutputType.FILE);
-        }
+        byte[] png = captureScreenshot();
         try {
 
             File testScreenshot = new File(name);
-            FileUtils.copyFile(scrFile, testScreenshot);
+            long ticket = screenshotDeduplicator != null ? screenshotDeduplicator.nextTicket() : 0;
+            testScreenshot = ScreenshotWriter.store(png, testScreenshot, screenshotDeduplicator, ticket, screenshotTranscoder);
             logger.info("Screenshot stored to {}", testScreenshot.getAbsolutePath());
 
             if(guiEnabled) {
-                showScreenshot(testScreenshot);
+                ScreenshotViewer.getDefault().show(png);
             }
 
             return testScreenshot;
@@ -728,22 +1106,35 @@ public class TestdroidAppiumClient {
         return null;
     }
 
-    public void showScreenshot(File screenshot) {
-        try { // lets catch everything so that test goes trough even if problem
-              // with GUI
-            if(screenshotDisplay != null) {
-                // screenshotDisplay.dispatchEvent(new
-                // WindowEvent(screenshotDisplay, WindowEvent.WINDOW_CLOSING));
-                screenshotDisplay.dispose();
-            }
-            screenshotDisplay = new ScreenshotDisplay();
-            screenshotDisplay.show(screenshot);
-        } catch (Exception ex) {
-            logger.error("Failed displaying screenshot - test run will still continue", ex);
+    /**
+     * Take screenshot and write it to disk in the background, see ScreenshotWriter
+     *
+     * @return Future yielding the written file, or the earlier screenshot this one duplicates
+     */
+    public Future<File> screenshotAsync(String name) throws InterruptedException {
+        logger.info("Taking screenshot...");
+        byte[] png = captureScreenshot();
+        if(guiEnabled) {
+            ScreenshotViewer.getDefault().show(png);
+        }
+        return ScreenshotWriter.getDefault().write(png, new File(name), screenshotDeduplicator, screenshotTranscoder);
+    }
 
+    private byte[] captureScreenshot() {
+        if(iOSDriverUsed) {
+            return ((TakesScreenshot) iOSdriver).getScreenshotAs(OutputType.BYTES);
+        } else {
+            return ((TakesScreenshot) androidDriver).getScreenshotAs(OutputType.BYTES);
         }
     }
 
+    /**
+     * Show screenshot in the screenshot window, returns without waiting for it to be displayed
+     */
+    public void showScreenshot(File screenshot) {
+        ScreenshotViewer.getDefault().show(screenshot);
+    }
+
     // Appium server upload response classes
 
     public static class AppiumResponse {
@@ -772,42 +1163,3 @@ public class TestdroidAppiumClient {
         UploadedFile fileInfo;
     }
 }
-
-// @TODO make screenshot displaying to fit to screen, reuse the frame
-
-class ImagePanel extends JPanel {
-    private Image img;
-
-    public ImagePanel(Image image) {
-        this.img = img;
-        Dimension size = new Dimension(image.getWidth(null), image.getHeight(null));
-        setPreferredSize(size);
-        setMinimumSize(size);
-        setMaximumSize(size);
-        setSize(size);
-        setLayout(null);
-    }
-
-    public void paintComponent(Graphics g) {
-        g.drawImage(img, 0, 0, null);
-    }
-}
-
-class ScreenshotDisplay extends JFrame {
-    public void show(File screenshotFile) {
-        ImagePanel panel = null;
-        Image image = null;
-        try {
-            image = ImageIO.read(screenshotFile);
-            panel = new ImagePanel(image);
-        } catch (IOException e) {
-            e.printStackTrace(); // To change body of catch statement use File |
-                                 // Settings | File Templates.
-            return;
-        }
-        add(panel);
-        setVisible(true);
-        setSize(image.getWidth(null), image.getHeight(null));
-        setDefaultCloseOperation(EXIT_ON_CLOSE);
-    }
-}
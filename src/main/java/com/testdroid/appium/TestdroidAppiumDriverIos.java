@@ -9,11 +9,14 @@ import org.openqa.selenium.interactions.HasTouchScreen;
 import org.openqa.selenium.interactions.TouchScreen;
 import org.openqa.selenium.remote.DesiredCapabilities;
 import org.openqa.selenium.remote.RemoteTouchScreen;
+import org.openqa.selenium.remote.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.Future;
 
 /**
  * Testdroid Appium driver
@@ -35,9 +38,107 @@ public class TestdroidAppiumDriverIos extends IOSDriver implements HasTouchScree
 
     public RemoteTouchScreen touch;
 
+    // Null while the super constructor starts the session, that command is not measured
+    private final DriverSupport support;
+
     public TestdroidAppiumDriverIos(URL url, DesiredCapabilities capabilities) {
         super(url, capabilities);
         touch = new RemoteTouchScreen(getExecuteMethod());
+        support = new DriverSupport(this);
+        // Registered last, once the session has been started and the support exists
+        support.register();
+    }
+
+    // Raw Map as declared by AppiumDriver, a generic signature clashes with it
+    @Override
+    public Response execute(final String driverCommand, final Map parameters) {
+        if(support == null) {
+            return super.execute(driverCommand, parameters);
+        }
+        return support.execute(driverCommand, parameters, new CommandRetryPolicy.Command() {
+            public Response execute() {
+                return TestdroidAppiumDriverIos.super.execute(driverCommand, parameters);
+            }
+        });
+    }
+
+    /**
+     * @return Latency histograms and error counts of the commands executed by this driver
+     */
+    public CommandMetrics getCommandMetrics() {
+        return support.getCommandMetrics();
+    }
+
+    /**
+     * Remember elements found by each locator until the screen may have changed, see ElementCache
+     */
+    public void setElementCacheEnabled(boolean enabled) {
+        support.setElementCacheEnabled(enabled);
+    }
+
+    /**
+     * @return Element cache with hit and miss counts, null if not enabled
+     */
+    public ElementCache getElementCache() {
+        return support.getElementCache();
+    }
+
+    /**
+     * Retry failed commands that don't change the application, see CommandRetryPolicy. Null, the default,
+     * disables retrying.
+     */
+    public void setCommandRetryPolicy(CommandRetryPolicy retryPolicy) {
+        support.setCommandRetryPolicy(retryPolicy);
+    }
+
+    /**
+     * @return Retry policy with retry and hedge counts, null if retrying is disabled
+     */
+    public CommandRetryPolicy getCommandRetryPolicy() {
+        return support.getCommandRetryPolicy();
+    }
+
+    @Override
+    public void quit() {
+        support.quit(new Runnable() {
+            public void run() {
+                TestdroidAppiumDriverIos.super.quit();
+            }
+        });
+    }
+
+    /**
+     * Fetch the page source once for evaluating locators locally, see PageSnapshot
+     */
+    public PageSnapshot snapshot() {
+        return support.snapshot();
+    }
+
+    /**
+     * Wait until the page source has not changed for stableMillis, see IdleWait
+     *
+     * @return Milliseconds waited
+     * @throws org.openqa.selenium.TimeoutException if the screen is still changing after timeoutMillis
+     */
+    public long waitForIdle(long stableMillis, long timeoutMillis) {
+        return support.waitForIdle(stableMillis, timeoutMillis, IdleWait.Fingerprint.PAGE_SOURCE);
+    }
+
+    /**
+     * Wait until the fingerprint of the screen has not changed for stableMillis, see IdleWait
+     *
+     * @return Milliseconds waited
+     * @throws org.openqa.selenium.TimeoutException if the screen is still changing after timeoutMillis
+     */
+    public long waitForIdle(long stableMillis, long timeoutMillis, IdleWait.Fingerprint fingerprint) {
+        return support.waitForIdle(stableMillis, timeoutMillis, fingerprint);
+    }
+
+    /**
+     * Commands of this session returning futures, run in order on a thread pool shared with other sessions
+     */
+    public AsyncDriver async() {
+        return support.async();
     }
 
     public TouchScreen getTouch() {
@@ -45,8 +146,16 @@ public class TestdroidAppiumDriverIos extends IOSDriver implements HasTouchScree
     }
 
     public void takeScreenshot(String filePath) throws Exception {
-        File f = getScreenshotAs(OutputType.FILE);
-        FileUtils.copyFile(f, new File(filePath));
+        FileUtils.writeByteArrayToFile(new File(filePath), getScreenshotAs(OutputType.BYTES));
         logger.info("Screenshot captured: {}", filePath);
     }
+
+    /**
+     * Take screenshot and write it to disk in the background, see ScreenshotWriter
+     *
+     * @return Future yielding the written file
+     */
+    public Future<File> takeScreenshotAsync(String filePath) throws InterruptedException {
+        return support.takeScreenshotAsync(filePath);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,152 @@
+package com.testdroid.appium;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Immutable snapshot of the testdroid.* configuration, shared by all clients.
+ *
+ * Values are looked up from these sources, the first one having a non-empty value wins:
+ * <ol>
+ * <li>System properties, -Dtestdroid.username=...</li>
+ * <li>Environment variables, the key in upper case with dots replaced by underscores, TESTDROID_USERNAME=...</li>
+ * <li>testdroid.properties in the working directory</li>
+ * <li>~/.testdroid/testdroid.properties</li>
+ * <li>testdroid.properties in the root of the classpath</li>
+ * </ol>
+ * The snapshot is taken once, reading it takes no locks. Call reload() to pick up changes, e.g. system
+ * properties set after the first client was created.
+ */
+public final class TestdroidConfig {
+
+    public static final String PROPERTIES_FILE = "testdroid.properties";
+    public static final File USER_PROPERTIES_FILE = new File(System.getProperty("user.home"), ".testdroid/" + PROPERTIES_FILE);
+
+    private static final Logger logger = LoggerFactory.getLogger(TestdroidConfig.class);
+
+    private static volatile TestdroidConfig current;
+
+    private final Map<String, String> systemProperties;
+    private final Map<String, String> environment;
+    private final Map<String, String> fileProperties;
+
+    private TestdroidConfig(Map<String, String> systemProperties, Map<String, String> environment, Map<String, String> fileProperties) {
+        this.systemProperties = systemProperties;
+        this.environment = environment;
+        this.fileProperties = fileProperties;
+    }
+
+    /**
+     * @return Current snapshot, loaded on first use
+     */
+    public static TestdroidConfig get() {
+        TestdroidConfig config = current;
+        if(config == null) {
+            synchronized(TestdroidConfig.class) {
+                if(current == null) {
+                    current = load();
+                }
+                config = current;
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Read all sources again and replace the current snapshot, clients created earlier keep their values
+     */
+    public static synchronized TestdroidConfig reload() {
+        current = load();
+        return current;
+    }
+
+    /**
+     * @return Value of key or null if no source has a non-empty value for it
+     */
+    public String get(String key) {
+        String value = systemProperties.get(key);
+        if(StringUtils.isEmpty(value)) {
+            value = environment.get(environmentName(key));
+        }
+        if(StringUtils.isEmpty(value)) {
+            value = fileProperties.get(key);
+        }
+        return StringUtils.isEmpty(value) ? null : value;
+    }
+
+    public String get(String key, String defaultValue) {
+        String value = get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * @return Name of the environment variable for key, testdroid.username is TESTDROID_USERNAME
+     */
+    public static String environmentName(String key) {
+        return key.toUpperCase().replace('.', '_');
+    }
+
+    private static TestdroidConfig load() {
+        Map<String, String> systemProperties = new HashMap<String, String>();
+        Properties properties = System.getProperties();
+        // Properties is a Hashtable, copying under its lock avoids concurrent modification
+        synchronized(properties) {
+            copy(properties, systemProperties);
+        }
+
+        // Lowest precedence first, later files override
+        Properties files = new Properties();
+        InputStream in = TestdroidConfig.class.getResourceAsStream("/" + PROPERTIES_FILE);
+        if(in != null) {
+            load(files, in, "classpath:" + PROPERTIES_FILE);
+        }
+        load(files, USER_PROPERTIES_FILE);
+        load(files, new File(PROPERTIES_FILE));
+        Map<String, String> fileProperties = new HashMap<String, String>();
+        copy(files, fileProperties);
+
+        return new TestdroidConfig(Collections.unmodifiableMap(systemProperties), System.getenv(),
+                Collections.unmodifiableMap(fileProperties));
+    }
+
+    private static void copy(Properties properties, Map<String, String> target) {
+        for(Map.Entry<Object, Object> entry : properties.entrySet()) {
+            if(entry.getKey() instanceof String && entry.getValue() instanceof String) {
+                target.put((String) entry.getKey(), (String) entry.getValue());
+            }
+        }
+    }
+
+    private static void load(Properties properties, File file) {
+        if(!file.isFile()) {
+            return;
+        }
+        try {
+            load(properties, new FileInputStream(file), file.getPath());
+        } catch (IOException e) {
+            logger.error("Failed loading {}", file, e);
+        }
+    }
+
+    private static void load(Properties properties, InputStream in, String name) {
+        try {
+            logger.info("Loading default properties from {}", name);
+            properties.load(in);
+        } catch (IOException e) {
+            logger.error("Failed loading {}", name, e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+}
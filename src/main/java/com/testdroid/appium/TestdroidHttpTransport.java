@@ -0,0 +1,87 @@
+package com.testdroid.appium;
+
+import java.io.IOException;
+
+import com.google.api.client.http.GZipEncoding;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+
+/**
+ * HTTP settings for the traffic the client sends outside of WebDriver commands, i.e. application uploads.
+ *
+ * All instances share one transport. It is backed by HttpURLConnection, which keeps connections to each host alive
+ * in a JVM-wide pool, so consecutive uploads from any client reuse warm connections. Responses are requested with
+ * gzip compression.
+ */
+public class TestdroidHttpTransport {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 20 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 5 * 60 * 1000;
+
+    private static final HttpTransport TRANSPORT = new NetHttpTransport();
+
+    private int connectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+    private int readTimeoutMs = DEFAULT_READ_TIMEOUT_MS;
+    private boolean compressRequests;
+
+    /**
+     * Set number of idle keep-alive connections kept per host. This sets the http.keepAlive and
+     * http.maxConnections system properties, so it applies to every HttpURLConnection of the JVM, not only to
+     * this transport or client, and only has effect before the first connection is opened.
+     */
+    public static void setMaxConnectionsPerHost(int maxConnections) {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", Integer.toString(maxConnections));
+    }
+
+    public HttpTransport getTransport() {
+        return TRANSPORT;
+    }
+
+    public int getConnectTimeoutMs() {
+        return connectTimeoutMs;
+    }
+
+    public void setConnectTimeoutMs(int connectTimeoutMs) {
+        this.connectTimeoutMs = connectTimeoutMs;
+    }
+
+    public int getReadTimeoutMs() {
+        return readTimeoutMs;
+    }
+
+    /**
+     * Set read timeout, covers waiting for the response after the whole upload has been sent
+     */
+    public void setReadTimeoutMs(int readTimeoutMs) {
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
+    /**
+     * Compress request bodies with gzip. Only useful if the server accepts gzip encoded requests.
+     */
+    public void setCompressRequests(boolean compressRequests) {
+        this.compressRequests = compressRequests;
+    }
+
+    /**
+     * Create request factory applying these settings before the given initializer
+     */
+    public HttpRequestFactory createRequestFactory(final HttpRequestInitializer initializer) {
+        return TRANSPORT.createRequestFactory(new HttpRequestInitializer() {
+            public void initialize(HttpRequest request) throws IOException {
+                request.setConnectTimeout(connectTimeoutMs);
+                request.setReadTimeout(readTimeoutMs);
+                if(compressRequests) {
+                    request.setEncoding(new GZipEncoding());
+                }
+                if(initializer != null) {
+                    initializer.initialize(request);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,199 @@
+package com.testdroid.appium;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent cache of uploaded application files.
+ *
+ * Uploads are keyed by the SHA-1 of the application file together with the upload URL and user, so the same
+ * build is uploaded only once as long as the file UUID returned by the Appium broker has not expired.
+ */
+public class UploadCache {
+
+    public static final File DEFAULT_CACHE_FILE = new File(System.getProperty("user.home"), ".testdroid/upload-cache.properties");
+
+    // Entries are dropped this long before the broker expires them so a session never starts with a stale UUID
+    private static final long EXPIRY_MARGIN_MS = 60 * 1000L;
+
+    private static final Logger logger = LoggerFactory.getLogger(UploadCache.class);
+
+    private static UploadCache defaultCache;
+
+    private final File cacheFile;
+
+    public UploadCache(File cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    public static synchronized UploadCache getDefault() {
+        if(defaultCache == null) {
+            defaultCache = new UploadCache(DEFAULT_CACHE_FILE);
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Calculate cache key for application file
+     *
+     * @return Key or null if the file could not be read
+     */
+    public String key(File appFile, String uploadUrl, String username) {
+        try {
+            return String.format("%s.%s", sha1(appFile), sha1(uploadUrl + "\n" + username));
+        } catch (IOException e) {
+            logger.warn("Unable to hash {}, upload cache disabled for this file", appFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return Cached file UUID or null if not found or expired
+     */
+    public synchronized String get(String key) {
+        Properties entries = load();
+        String uuid = entries.getProperty(key + ".uuid");
+        String expires = entries.getProperty(key + ".expires");
+        if(uuid == null || expires == null) {
+            return null;
+        }
+        try {
+            if(Long.parseLong(expires) - EXPIRY_MARGIN_MS > System.currentTimeMillis()) {
+                return uuid;
+            }
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid expiry time '{}' in {}", expires, cacheFile);
+        }
+        return null;
+    }
+
+    /**
+     * Store file UUID
+     *
+     * @param expiresIn Seconds until the Appium broker forgets the upload
+     */
+    public synchronized void put(String key, String fileUUID, Integer expiresIn) {
+        if(expiresIn == null || expiresIn <= 0) {
+            logger.info("Upload of {} has no expiry time, not caching it", fileUUID);
+            return;
+        }
+        Properties entries = load();
+        long now = System.currentTimeMillis();
+        // Prune expired entries so the file does not grow forever
+        for(Object entryKey : new ArrayList<Object>(entries.keySet())) {
+            String name = (String) entryKey;
+            if(name.endsWith(".expires")) {
+                try {
+                    if(Long.parseLong(entries.getProperty(name)) < now) {
+                        String prefix = name.substring(0, name.length() - ".expires".length());
+                        entries.remove(name);
+                        entries.remove(prefix + ".uuid");
+                    }
+                } catch (NumberFormatException e) {
+                    entries.remove(name);
+                }
+            }
+        }
+        entries.setProperty(key + ".uuid", fileUUID);
+        entries.setProperty(key + ".expires", Long.toString(now + expiresIn * 1000L));
+        store(entries);
+    }
+
+    private Properties load() {
+        Properties entries = new Properties();
+        if(!cacheFile.exists()) {
+            return entries;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(cacheFile);
+            entries.load(in);
+        } catch (IOException e) {
+            logger.warn("Failed loading upload cache {}", cacheFile, e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return entries;
+    }
+
+    private void store(Properties entries) {
+        File parent = cacheFile.getAbsoluteFile().getParentFile();
+        if(!parent.exists() && !parent.mkdirs()) {
+            logger.warn("Unable to create {}", parent);
+            return;
+        }
+        // Write to a temporary file of our own first so concurrent JVMs never read a truncated cache or write
+        // into each other's temporary file
+        File tmpFile = null;
+        OutputStream out = null;
+        try {
+            tmpFile = File.createTempFile(cacheFile.getName(), ".tmp", parent);
+            out = new FileOutputStream(tmpFile);
+            entries.store(out, "Testdroid Appium upload cache");
+        } catch (IOException e) {
+            logger.warn("Failed storing upload cache {}", cacheFile, e);
+            IOUtils.closeQuietly(out);
+            if(tmpFile != null) {
+                tmpFile.delete();
+            }
+            return;
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+        if(!tmpFile.renameTo(cacheFile)) {
+            cacheFile.delete();
+            if(!tmpFile.renameTo(cacheFile)) {
+                logger.warn("Unable to replace upload cache {}", cacheFile);
+                tmpFile.delete();
+            }
+        }
+    }
+
+    private static String sha1(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return toHex(digest.digest());
+    }
+
+    private static String sha1(String value) throws IOException {
+        return toHex(newDigest().digest(value.getBytes("UTF-8")));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,24 @@
+package com.testdroid.appium;
+
+import java.io.File;
+
+/**
+ * Receives progress of application file uploads
+ */
+public interface UploadProgressListener {
+
+    /**
+     * Called after each chunk written to the Appium broker
+     *
+     * @param file File being uploaded
+     * @param bytesSent Bytes of the file sent so far in the current attempt
+     * @param totalBytes File size
+     * @param bytesPerSecond Average throughput of the current attempt
+     */
+    void progress(File file, long bytesSent, long totalBytes, long bytesPerSecond);
+
+    /**
+     * Called when an upload attempt failed and will be retried
+     */
+    void retrying(File file, int attempt, Exception cause);
+}
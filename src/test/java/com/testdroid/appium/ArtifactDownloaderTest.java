@@ -0,0 +1,172 @@
+package com.testdroid.appium;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.ArrayUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class ArtifactDownloaderTest {
+
+    private final byte[] content = new byte[64 * 1024];
+    // Range headers of the requests, "" when none was sent
+    private final List<String> ranges = new CopyOnWriteArrayList<String>();
+    private final AtomicInteger failuresLeft = new AtomicInteger();
+    private volatile boolean honourRange = true;
+    private volatile int status;
+
+    private HttpServer server;
+    private String url;
+    private File directory;
+    private File file;
+    private File part;
+    private ArtifactDownloader downloader;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(1).nextBytes(content);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                ranges.add(range == null ? "" : range);
+                try {
+                    if(failuresLeft.getAndDecrement() > 0) {
+                        exchange.sendResponseHeaders(500, -1);
+                    } else if(status != 0) {
+                        exchange.sendResponseHeaders(status, -1);
+                    } else if(range != null && honourRange) {
+                        int offset = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+                        if(offset >= content.length) {
+                            exchange.getResponseHeaders().set("Content-Range", "bytes */" + content.length);
+                            exchange.sendResponseHeaders(416, -1);
+                        } else {
+                            exchange.getResponseHeaders().set("Content-Range",
+                                    "bytes " + offset + "-" + (content.length - 1) + "/" + content.length);
+                            send(exchange, 206, ArrayUtils.subarray(content, offset, content.length));
+                        }
+                    } else {
+                        send(exchange, 200, content);
+                    }
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        url = "http://localhost:" + server.getAddress().getPort() + "/result-data.zip";
+
+        directory = File.createTempFile("artifact-downloader", "");
+        directory.delete();
+        directory.mkdirs();
+        file = new File(directory, "run/device-1.zip");
+        part = new File(file.getPath() + ".part");
+        downloader = new ArtifactDownloader(1);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop(0);
+        FileUtils.deleteDirectory(directory);
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private File download() throws IOException, InterruptedException {
+        return downloader.download(url, file, "user", "password", new TestdroidHttpTransport());
+    }
+
+    @Test
+    public void testDownload() throws Exception {
+        assertEquals(file, download());
+        assertArrayEquals(content, FileUtils.readFileToByteArray(file));
+        assertFalse(part.exists());
+        assertEquals(Arrays.asList(""), ranges);
+    }
+
+    @Test
+    public void testResumePart() throws Exception {
+        FileUtils.writeByteArrayToFile(part, ArrayUtils.subarray(content, 0, 1000));
+        download();
+        assertArrayEquals(content, FileUtils.readFileToByteArray(file));
+        assertFalse(part.exists());
+        assertEquals(Arrays.asList("bytes=1000-"), ranges);
+    }
+
+    @Test
+    public void testCompletePartIsRenamed() throws Exception {
+        // 416, the range starts at the end of the file
+        FileUtils.writeByteArrayToFile(part, content);
+        download();
+        assertArrayEquals(content, FileUtils.readFileToByteArray(file));
+        assertFalse(part.exists());
+        assertEquals(Arrays.asList("bytes=" + content.length + "-"), ranges);
+    }
+
+    @Test
+    public void testRangeIgnored() throws Exception {
+        // 200, the whole file is sent and replaces the part
+        honourRange = false;
+        FileUtils.writeByteArrayToFile(part, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 });
+        download();
+        assertArrayEquals(content, FileUtils.readFileToByteArray(file));
+        assertEquals(Arrays.asList("bytes=10-"), ranges);
+    }
+
+    @Test
+    public void testServerErrorRetried() throws Exception {
+        failuresLeft.set(1);
+        download();
+        assertArrayEquals(content, FileUtils.readFileToByteArray(file));
+        assertEquals(2, ranges.size());
+    }
+
+    @Test
+    public void testClientErrorNotRetried() throws Exception {
+        status = 404;
+        try {
+            download();
+            fail("404 did not fail the download");
+        } catch (IOException e) {
+            assertEquals(1, ranges.size());
+        }
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testRetriesExhausted() throws Exception {
+        downloader.setMaxRetries(0);
+        failuresLeft.set(1);
+        try {
+            download();
+            fail("500 did not fail the download");
+        } catch (IOException e) {
+            assertEquals(1, ranges.size());
+        }
+        assertFalse(file.exists());
+    }
+}
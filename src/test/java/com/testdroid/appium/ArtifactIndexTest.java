@@ -0,0 +1,144 @@
+package com.testdroid.appium;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ArtifactIndexTest {
+
+    // Spans a few checkpoints and many read buffers, so \r\n is split between buffers somewhere
+    private static final int LINES = 2 * ArtifactIndex.CHECKPOINT_LINES + 500;
+    private static final String[] SEPARATORS = { "\n", "\r\n", "\r" };
+    private static final String[] NAMES = { "lf", "crlf", "cr" };
+
+    private File directory;
+    private File archive;
+    private ArtifactIndex index;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("artifact-index", "");
+        directory.delete();
+        directory.mkdirs();
+        archive = new File(directory, "device-1.zip");
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(archive));
+        try {
+            for(int i = 0; i < SEPARATORS.length; i++) {
+                put(zip, "stored/" + NAMES[i] + ".log", log(SEPARATORS[i], true), ZipEntry.STORED);
+                put(zip, "deflated/" + NAMES[i] + ".log", log(SEPARATORS[i], true), ZipEntry.DEFLATED);
+                put(zip, "unterminated/" + NAMES[i] + ".log", log(SEPARATORS[i], false), ZipEntry.DEFLATED);
+            }
+            put(zip, "empty.log", "", ZipEntry.STORED);
+            put(zip, "blank-lines.txt", "\r\n\r\n\n\r\r", ZipEntry.DEFLATED);
+            put(zip, "screenshots/1.png", "png", ZipEntry.STORED);
+        } finally {
+            zip.close();
+        }
+        index = ArtifactIndex.index(archive);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    private static String log(String separator, boolean terminated) {
+        StringBuilder log = new StringBuilder();
+        for(int i = 0; i < LINES; i++) {
+            if(i > 0) {
+                log.append(separator);
+            }
+            log.append("line ").append(i);
+        }
+        if(terminated) {
+            log.append(separator);
+        }
+        return log.toString();
+    }
+
+    private static void put(ZipOutputStream zip, String name, String content, int method) throws IOException {
+        byte[] bytes = content.getBytes("UTF-8");
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(method);
+        if(method == ZipEntry.STORED) {
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            entry.setCrc(crc.getValue());
+            entry.setSize(bytes.length);
+            entry.setCompressedSize(bytes.length);
+        }
+        zip.putNextEntry(entry);
+        zip.write(bytes);
+        zip.closeEntry();
+    }
+
+    @Test
+    public void testLineCounts() {
+        for(String name : NAMES) {
+            for(String prefix : new String[] { "stored/", "deflated/", "unterminated/" }) {
+                ArtifactIndex.Entry entry = index.getEntry(prefix + name + ".log");
+                assertTrue(entry.isLog());
+                assertEquals(prefix + name, LINES, entry.getLineCount());
+            }
+        }
+        assertEquals(0, index.getEntry("empty.log").getLineCount());
+        // Five empty lines, the same as BufferedReader.readLine() returns
+        assertEquals(5, index.getEntry("blank-lines.txt").getLineCount());
+    }
+
+    @Test
+    public void testReadLinesFromCheckpoints() throws IOException {
+        for(String name : NAMES) {
+            for(String prefix : new String[] { "stored/", "deflated/", "unterminated/" }) {
+                String entryName = prefix + name + ".log";
+                for(int from : new int[] { 0, 999, 1000, 1001, 2000, LINES - 1 }) {
+                    assertEquals(entryName + " from " + from, Arrays.asList("line " + from), index.readLines(entryName, from, 1));
+                }
+                List<String> expected = new ArrayList<String>();
+                for(int i = 1998; i < 2003; i++) {
+                    expected.add("line " + i);
+                }
+                assertEquals(expected, index.readLines(entryName, 1998, 5));
+                assertEquals(0, index.readLines(entryName, LINES, 1).size());
+            }
+        }
+    }
+
+    @Test
+    public void testEntries() throws IOException {
+        ArtifactIndex.Entry screenshot = index.getEntry("screenshots/1.png");
+        assertTrue(screenshot.isScreenshot());
+        assertFalse(screenshot.isLog());
+        assertEquals(3, screenshot.getSize());
+        assertEquals(Arrays.asList(screenshot), index.getScreenshots());
+        assertNull(index.getEntry("missing.log"));
+        assertEquals("png", FileUtils.readFileToString(index.extract("screenshots/1.png", new File(directory, "1.png"))));
+    }
+
+    @Test
+    public void testGrep() throws IOException {
+        List<ArtifactIndex.Match> matches = index.grep(Pattern.compile("^line 2100$"));
+        assertEquals(9, matches.size());
+        for(ArtifactIndex.Match match : matches) {
+            assertEquals(2100, match.getLineNumber());
+            assertEquals("line 2100", match.getLine());
+        }
+    }
+}
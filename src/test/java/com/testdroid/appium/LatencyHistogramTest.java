@@ -0,0 +1,90 @@
+package com.testdroid.appium;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMicros(99));
+        assertEquals(0.0, histogram.getMeanMicros(), 0);
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(int i = 1; i <= 10; i++) {
+            histogram.record(i);
+        }
+        assertEquals(5, histogram.getPercentileMicros(50));
+        assertEquals(9, histogram.getPercentileMicros(90));
+        assertEquals(10, histogram.getPercentileMicros(100));
+        assertEquals(1, histogram.getPercentileMicros(0));
+        assertEquals(5.5, histogram.getMeanMicros(), 0.001);
+    }
+
+    @Test
+    public void testBucketBounds() {
+        for(long value = 0; value < 1000000; value = value < 64 ? value + 1 : value * 17 / 16) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            long upper = LatencyHistogram.upperBoundOf(bucket);
+            assertTrue(value + " above its bucket", value <= upper);
+            assertEquals(bucket, LatencyHistogram.bucketOf(upper));
+            // Relative width of a bucket stays below 12.5%
+            assertTrue(value + " in a bucket too wide", upper - value <= value / 8);
+        }
+        assertTrue(LatencyHistogram.upperBoundOf(LatencyHistogram.bucketOf(Long.MAX_VALUE)) >= Long.MAX_VALUE);
+    }
+
+    @Test
+    public void testPercentileAccuracy() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        long[] values = new long[100000];
+        Random random = new Random(1);
+        for(int i = 0; i < values.length; i++) {
+            // Long tail like real command latencies
+            values[i] = (long) (1000 * Math.exp(random.nextGaussian()));
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        for(double percentile : new double[] { 50, 90, 95, 99, 99.9 }) {
+            long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long estimate = histogram.getPercentileMicros(percentile);
+            assertTrue(percentile + ": " + estimate + " below " + exact, estimate >= exact);
+            assertTrue(percentile + ": " + estimate + " too far from " + exact, estimate <= exact + exact / 8);
+        }
+        assertEquals(values[values.length - 1], histogram.getPercentileMicros(100));
+        assertEquals(values[values.length - 1], histogram.getMaxMicros());
+    }
+
+    @Test
+    public void testConcurrentRecording() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for(int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for(int i = 1; i <= 10000; i++) {
+                        histogram.record(i);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40000, histogram.getCount());
+        assertEquals(10000, histogram.getMaxMicros());
+        assertEquals(5000.5, histogram.getMeanMicros(), 0.001);
+    }
+}
@@ -0,0 +1,151 @@
+package com.testdroid.appium;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openqa.selenium.InvalidSelectorException;
+
+public class PageSnapshotTest {
+
+    private static final String PAGE_SOURCE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<hierarchy>"
+            + "<android.widget.FrameLayout resource-id=\"com.example:id/root\">"
+            + "<android.widget.LinearLayout resource-id=\"com.example:id/first\">"
+            + "<android.widget.Button text=\"OK\" enabled=\"true\" resource-id=\"com.example:id/ok\"/>"
+            + "<android.widget.Button text=\"Cancel\" enabled=\"false\"/>"
+            + "<android.widget.TextView text=\"Title\"/>"
+            + "</android.widget.LinearLayout>"
+            + "<android.widget.LinearLayout resource-id=\"com.example:id/second\">"
+            + "<android.widget.Button text=\"Next\" enabled=\"true\"/>"
+            + "<android.widget.LinearLayout>"
+            + "<android.widget.Button text=\"Nested OK\" enabled=\"true\"/>"
+            + "</android.widget.LinearLayout>"
+            + "</android.widget.LinearLayout>"
+            + "</android.widget.FrameLayout>"
+            + "</hierarchy>";
+
+    private PageSnapshot snapshot;
+
+    @Before
+    public void setUp() {
+        snapshot = PageSnapshot.parse(PAGE_SOURCE, null);
+    }
+
+    @Test
+    public void testSize() {
+        assertEquals(10, snapshot.size());
+    }
+
+    @Test
+    public void testFindById() {
+        assertEquals("OK", snapshot.findFirstById("ok").getText());
+        assertEquals("OK", snapshot.findFirstById("com.example:id/ok").getText());
+        assertEquals(0, snapshot.findById("missing").size());
+    }
+
+    @Test
+    public void testAbsolutePath() {
+        assertEquals(texts("OK", "Cancel", "Next"), texts(snapshot.findByXPath("/hierarchy/android.widget.FrameLayout/android.widget.LinearLayout/android.widget.Button")));
+    }
+
+    @Test
+    public void testDescendantsInDocumentOrder() {
+        assertEquals(texts("OK", "Cancel", "Next", "Nested OK"), texts(snapshot.findByXPath("//android.widget.Button")));
+        assertEquals(texts("OK", "Cancel", "Next", "Nested OK"), texts(snapshot.findByXPath("//android.widget.LinearLayout//android.widget.Button")));
+    }
+
+    @Test
+    public void testPositionIsPerParent() {
+        // Like XPath //X[n] is the n:th X of its parent, not the n:th X of the document
+        assertEquals(texts("OK", "Next", "Nested OK"), texts(snapshot.findByXPath("//android.widget.Button[1]")));
+        assertEquals(texts("Cancel"), texts(snapshot.findByXPath("//android.widget.Button[2]")));
+        assertEquals(0, snapshot.findByXPath("//android.widget.Button[3]").size());
+    }
+
+    @Test
+    public void testXPathOfNode() {
+        assertEquals("/hierarchy[1]/android.widget.FrameLayout[1]/android.widget.LinearLayout[2]/android.widget.Button[1]",
+                snapshot.findFirstByXPath("//android.widget.Button[@text='Next']").getXPath());
+    }
+
+    @Test
+    public void testPredicates() {
+        assertEquals(texts("Cancel"), texts(snapshot.findByXPath("//*[@enabled='false']")));
+        assertEquals(texts("Title"), texts(snapshot.findByXPath("//*[text()=\"Title\"]")));
+        assertEquals(texts("OK", "Nested OK"), texts(snapshot.findByXPath("//android.widget.Button[contains(@text,'OK')]")));
+        assertEquals(texts("Nested OK"), texts(snapshot.findByXPath("//android.widget.LinearLayout[@resource-id='com.example:id/second']//android.widget.Button[contains(@text,'OK')]")));
+    }
+
+    @Test
+    public void testAnd() {
+        assertEquals(texts("OK"), texts(snapshot.findByXPath("//android.widget.Button[@text='OK' and @enabled='true']")));
+        assertEquals(0, snapshot.findByXPath("//android.widget.Button[@text='Cancel' and @enabled='true']").size());
+        assertEquals(texts("Nested OK"), texts(snapshot.findByXPath("//*[contains(@text,'OK') and text()='Nested OK']")));
+        // "and" inside a literal is not an operator
+        assertEquals(0, snapshot.findByXPath("//*[@text='this and that']").size());
+    }
+
+    @Test
+    public void testPredicatesInSequence() {
+        assertEquals(texts("Cancel"), texts(snapshot.findByXPath("//android.widget.Button[@enabled='false'][1]")));
+        assertEquals(texts("Nested OK"), texts(snapshot.findByXPath("//android.widget.LinearLayout[2]/android.widget.LinearLayout[1]/*")));
+    }
+
+    @Test
+    public void testTextIsTextOrValueAttribute() {
+        // No text nodes in page source, text() is the text attribute on Android and the value attribute on iOS
+        assertEquals(texts("Title"), texts(snapshot.findByXPath("//android.widget.TextView[text()='Title']")));
+        PageSnapshot ios = PageSnapshot.parse("<AppiumAUT><UIAApplication><UIAStaticText name=\"label\" value=\"Hello\">Ignored</UIAStaticText>"
+                + "</UIAApplication></AppiumAUT>", null);
+        assertEquals(texts("Hello"), texts(ios.findByXPath("//UIAStaticText[text()='Hello']")));
+        assertEquals(0, ios.findByXPath("//UIAStaticText[text()='Ignored']").size());
+    }
+
+    @Test
+    public void testUnsupportedXPath() {
+        assertInvalid("android.widget.Button");
+        assertInvalid("hierarchy/android.widget.FrameLayout");
+        assertInvalid("//android.widget.Button[@text!='OK']");
+        assertInvalid("//android.widget.Button[@text='OK' or @text='Cancel']");
+        assertInvalid("//android.widget.Button[@text='it's']");
+        assertInvalid("//android.widget.Button[@text=\"say \"hi\"\"]");
+        assertInvalid("//android.widget.Button[@text=OK]");
+        assertInvalid("//android.widget.Button[starts-with(@text,'O')]");
+        assertInvalid("//android.widget.Button[last()]");
+        assertInvalid("//android.widget.Button[@text='OK' and]");
+        assertInvalid("//android.widget.Button[string(@text)='OK']");
+        assertInvalid("//android.widget.Button/..");
+        assertInvalid("//android.widget.Button/@text");
+        assertInvalid("//child::android.widget.Button");
+    }
+
+    private void assertInvalid(String xpath) {
+        try {
+            snapshot.findByXPath(xpath);
+            fail("Expected InvalidSelectorException for " + xpath);
+        } catch (InvalidSelectorException e) {
+            // expected
+        }
+    }
+
+    private static List<String> texts(String... texts) {
+        List<String> list = new ArrayList<String>();
+        for(String text : texts) {
+            list.add(text);
+        }
+        return list;
+    }
+
+    private static List<String> texts(List<PageSnapshot.Node> nodes) {
+        List<String> list = new ArrayList<String>();
+        for(PageSnapshot.Node node : nodes) {
+            list.add(node.getText());
+        }
+        return list;
+    }
+}
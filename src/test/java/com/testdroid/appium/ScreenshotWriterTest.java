@@ -0,0 +1,113 @@
+package com.testdroid.appium;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ScreenshotWriterTest {
+
+    // Not images, so they are never duplicates of each other
+    private static final byte[] FIRST = { 1 };
+    private static final byte[] SECOND = { 2 };
+    private static final byte[] THIRD = { 3 };
+
+    private File directory;
+    private ScreenshotDeduplicator deduplicator;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("screenshot-writer", "");
+        directory.delete();
+        directory.mkdirs();
+        deduplicator = new ScreenshotDeduplicator(ScreenshotDeduplicator.DEFAULT_THRESHOLD);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    private static byte[] png() throws IOException {
+        BufferedImage image = new BufferedImage(90, 80, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, 45, 80);
+        graphics.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    @Test(timeout = 10000)
+    public void testCancelledWriteReleasesTicket() throws Exception {
+        ScreenshotWriter writer = new ScreenshotWriter(1, 2);
+        // Held by the test, the first write waits for it on the only writer thread
+        long held = deduplicator.nextTicket();
+        Future<File> first = writer.write(FIRST, new File(directory, "1.png"), deduplicator, null);
+        Future<File> second = writer.write(SECOND, new File(directory, "2.png"), deduplicator, null);
+        assertTrue(second.cancel(false));
+        // Would block forever if the cancelled write kept its permit
+        Future<File> third = writer.write(THIRD, new File(directory, "3.png"), deduplicator, null);
+        deduplicator.skip(held);
+
+        assertEquals(new File(directory, "1.png"), first.get(5, TimeUnit.SECONDS));
+        // Would time out if the cancelled write kept its turn
+        assertEquals(new File(directory, "3.png"), third.get(5, TimeUnit.SECONDS));
+        assertArrayEquals(THIRD, FileUtils.readFileToByteArray(new File(directory, "3.png")));
+        assertFalse(new File(directory, "2.png").exists());
+        writer.close(5000);
+    }
+
+    @Test(timeout = 10000)
+    public void testRejectedWriteReleasesTicket() throws Exception {
+        ScreenshotWriter closed = new ScreenshotWriter(1, 1);
+        closed.close(5000);
+        for(int i = 0; i < 2; i++) {
+            // The second attempt would block forever if the first kept the only permit
+            try {
+                closed.write(FIRST, new File(directory, "1.png"), deduplicator, null);
+                fail("Write after close() was accepted");
+            } catch (RejectedExecutionException e) {
+                // expected
+            }
+        }
+
+        ScreenshotWriter writer = new ScreenshotWriter(1, 1);
+        Future<File> second = writer.write(SECOND, new File(directory, "2.png"), deduplicator, null);
+        // Would time out if the rejected writes kept their turns
+        assertEquals(new File(directory, "2.png"), second.get(5, TimeUnit.SECONDS));
+        assertFalse(new File(directory, "1.png").exists());
+        writer.close(5000);
+    }
+
+    @Test(timeout = 10000)
+    public void testDuplicateStoredAsReference() throws Exception {
+        ScreenshotWriter writer = new ScreenshotWriter(2, 4);
+        byte[] png = png();
+        File first = writer.write(png, new File(directory, "1.png"), deduplicator, null).get(5, TimeUnit.SECONDS);
+        File second = writer.write(png, new File(directory, "2.png"), deduplicator, null).get(5, TimeUnit.SECONDS);
+        assertEquals(first, second);
+        assertFalse(new File(directory, "2.png").exists());
+        assertEquals(first.getAbsolutePath(), FileUtils.readFileToString(new File(directory, "2.png" + ScreenshotDeduplicator.REFERENCE_SUFFIX), "UTF-8"));
+        writer.close(5000);
+    }
+}
@@ -0,0 +1,706 @@
+package com.testdroid.appium;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.io.IOUtils;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.client.util.Base64;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embeddable local stand-in for Testdroid Cloud, for load testing the client without the real cloud. Test code only,
+ * it is not part of the driver jar.
+ *
+ * Implements the subset of the Appium hub (/wd/hub), the Appium broker upload (/upload) and the Testdroid API
+ * (/oauth/token, /api/v2) used by TestdroidAppiumClient. Responses can be delayed, devices locked and failures
+ * injected.
+ *
+ * Usage:
+ *
+ * <pre>
+ * TestdroidLocalServer server = new TestdroidLocalServer(0);
+ * server.addDevice("Local Nexus 7", 19, 4);
+ * server.start();
+ * TestdroidAppiumClient client = new TestdroidAppiumClient();
+ * server.configure(client);
+ * client.setDeviceName("Local Nexus 7");
+ * </pre>
+ */
+@SuppressWarnings("unchecked")
+public class TestdroidLocalServer {
+
+    private static final Logger logger = LoggerFactory.getLogger(TestdroidLocalServer.class);
+
+    // JSON wire protocol status codes
+    private static final int STATUS_SUCCESS = 0;
+    private static final int STATUS_NO_SUCH_DRIVER = 6;
+    private static final int STATUS_UNKNOWN_ERROR = 13;
+
+    private static final String PAGE_SOURCE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><hierarchy rotation=\"0\">"
+            + "<android.widget.FrameLayout index=\"0\" class=\"android.widget.FrameLayout\" bounds=\"[0,0][800,1280]\">"
+            + "<android.widget.ScrollView index=\"0\" class=\"android.widget.ScrollView\" bounds=\"[0,50][800,1280]\">"
+            + "<android.widget.Button index=\"0\" class=\"android.widget.Button\" text=\"Native\" resource-id=\"button1\" bounds=\"[0,50][800,150]\"/>"
+            + "<android.widget.Button index=\"1\" class=\"android.widget.Button\" text=\"Hybrid\" resource-id=\"button2\" bounds=\"[0,150][800,250]\"/>"
+            + "</android.widget.ScrollView></android.widget.FrameLayout></hierarchy>";
+
+    private final int requestedPort;
+    private final Random random = new Random();
+    private final JSONParser parser = new JSONParser();
+
+    private final List<Device> devices = new CopyOnWriteArrayList<Device>();
+    private final Map<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+    private final Map<String, Project> projects = new ConcurrentHashMap<String, Project>();
+    private final AtomicLong ids = new AtomicLong(1);
+    private final AtomicInteger sessionCount = new AtomicInteger();
+    private final AtomicInteger uploadCount = new AtomicInteger();
+
+    private volatile long latencyMs;
+    private volatile double failureRate;
+    private final AtomicInteger failuresLeft = new AtomicInteger();
+
+    private String screenshotBase64;
+    private byte[] resultDataZip;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    private static class Device {
+        final long id;
+        final String name;
+        final int apiLevel;
+        final AtomicInteger freeUnits;
+        volatile boolean forcedLocked;
+
+        Device(long id, String name, int apiLevel, int units) {
+            this.id = id;
+            this.name = name;
+            this.apiLevel = apiLevel;
+            this.freeUnits = new AtomicInteger(units);
+        }
+
+        boolean isLocked() {
+            return forcedLocked || freeUnits.get() <= 0;
+        }
+    }
+
+    private static class Session {
+        Device device;
+        TestRun testRun;
+    }
+
+    private static class Project {
+        final long id;
+        final String name;
+        final List<TestRun> testRuns = new CopyOnWriteArrayList<TestRun>();
+
+        Project(long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    private static class TestRun {
+        final long id;
+        final long deviceRunId;
+        final String name;
+        final String deviceName;
+        volatile boolean finished;
+
+        TestRun(long id, long deviceRunId, String name, String deviceName) {
+            this.id = id;
+            this.deviceRunId = deviceRunId;
+            this.name = name;
+            this.deviceName = deviceName;
+        }
+    }
+
+    /**
+     * @param port Port to listen to on 127.0.0.1, use 0 for any free port
+     */
+    public TestdroidLocalServer(int port) {
+        this.requestedPort = port;
+    }
+
+    /**
+     * Add a device model
+     *
+     * @param apiLevel Android API level, 0 for iOS
+     * @param units Number of identical devices, each session locks one
+     */
+    public void addDevice(String name, int apiLevel, int units) {
+        devices.add(new Device(ids.getAndIncrement(), name, apiLevel, units));
+    }
+
+    /**
+     * Lock or unlock all units of a device model regardless of sessions
+     */
+    public void setDeviceLocked(String name, boolean locked) {
+        for(Device device : devices) {
+            if(device.name.equals(name)) {
+                device.forcedLocked = locked;
+            }
+        }
+    }
+
+    /**
+     * Delay every response, e.g. to simulate the round trip to the cloud
+     */
+    public void setLatencyMs(long latencyMs) {
+        this.latencyMs = latencyMs;
+    }
+
+    /**
+     * Fail this fraction of requests with a server error, between 0 and 1
+     */
+    public void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * Fail the next requests with a server error, in addition to the failure rate
+     */
+    public void failNextRequests(int requests) {
+        failuresLeft.set(requests);
+    }
+
+    public int getActiveSessions() {
+        return sessions.size();
+    }
+
+    public int getSessionCount() {
+        return sessionCount.get();
+    }
+
+    public int getUploadCount() {
+        return uploadCount.get();
+    }
+
+    /**
+     * Mark the test runs of all sessions finished, as the cloud does some time after the session ends
+     */
+    public void finishAllRuns() {
+        for(Project project : projects.values()) {
+            for(TestRun testRun : project.testRuns) {
+                testRun.finished = true;
+            }
+        }
+    }
+
+    public void start() throws IOException {
+        screenshotBase64 = Base64.encodeBase64String(renderScreenshot());
+        resultDataZip = createResultDataZip();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", requestedPort), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/wd/hub", new Handler() {
+            Object handle(HttpExchange exchange, String method, String[] path, JSONObject body) throws Exception {
+                return handleHub(exchange, method, path, body);
+            }
+        });
+        server.createContext("/upload", new Handler() {
+            Object handle(HttpExchange exchange, String method, String[] path, JSONObject body) {
+                return handleUpload();
+            }
+        });
+        server.createContext("/oauth/token", new Handler() {
+            Object handle(HttpExchange exchange, String method, String[] path, JSONObject body) {
+                JSONObject token = new JSONObject();
+                token.put("access_token", "local-access-token");
+                token.put("refresh_token", "local-refresh-token");
+                token.put("token_type", "bearer");
+                token.put("expires_in", 3600);
+                return token;
+            }
+        });
+        server.createContext("/api/v2", new Handler() {
+            Object handle(HttpExchange exchange, String method, String[] path, JSONObject body) throws Exception {
+                return handleApi(exchange, path);
+            }
+        });
+        server.start();
+        logger.info("Local Testdroid server listening at {}", getCloudUrl());
+    }
+
+    public void stop() {
+        if(server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    public URL getCloudUrl() throws MalformedURLException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    public URL getAppiumUrl() throws MalformedURLException {
+        return new URL(getCloudUrl() + "/wd/hub");
+    }
+
+    public URL getAppiumUploadUrl() throws MalformedURLException {
+        return new URL(getCloudUrl() + "/upload");
+    }
+
+    /**
+     * Point client at this server. 127.0.0.1 is used so the client takes the cloud code path.
+     */
+    public void configure(TestdroidAppiumClient client) throws MalformedURLException {
+        client.setCloudUrl(getCloudUrl());
+        client.setAppiumUrl(getAppiumUrl());
+        client.setAppiumUploadUrl(getAppiumUploadUrl());
+    }
+
+    // Appium hub
+
+    private Object handleHub(HttpExchange exchange, String method, String[] path, JSONObject body) {
+        // path: session[/id[/command...]]
+        if(path.length == 1 && path[0].equals("session") && method.equals("POST")) {
+            return createSession(body);
+        }
+        if(path.length >= 2 && path[0].equals("session")) {
+            Session session = sessions.get(path[1]);
+            if(session == null) {
+                return wireResponse(path[1], STATUS_NO_SUCH_DRIVER, "No such session");
+            }
+            if(path.length == 2 && method.equals("DELETE")) {
+                deleteSession(path[1], session);
+                return wireResponse(path[1], STATUS_SUCCESS, null);
+            }
+            String command = path[2];
+            if(command.equals("screenshot")) {
+                return wireResponse(path[1], STATUS_SUCCESS, screenshotBase64);
+            }
+            if(command.equals("source")) {
+                return wireResponse(path[1], STATUS_SUCCESS, PAGE_SOURCE);
+            }
+            if(command.equals("element") && path.length == 3) {
+                return wireResponse(path[1], STATUS_SUCCESS, element());
+            }
+            if(command.equals("elements") || (command.equals("element") && path.length == 5 && path[4].equals("elements"))) {
+                JSONArray elements = new JSONArray();
+                elements.add(element());
+                elements.add(element());
+                return wireResponse(path[1], STATUS_SUCCESS, elements);
+            }
+            if(command.equals("element") && path.length == 5 && (path[4].equals("text") || path[4].equals("name"))) {
+                return wireResponse(path[1], STATUS_SUCCESS, "Local element");
+            }
+            if(command.equals("element") && path.length == 5 && path[4].equals("displayed")) {
+                return wireResponse(path[1], STATUS_SUCCESS, Boolean.TRUE);
+            }
+            return wireResponse(path[1], STATUS_SUCCESS, null);
+        }
+        if(path.length == 1 && path[0].equals("status")) {
+            return wireResponse(null, STATUS_SUCCESS, new JSONObject());
+        }
+        return wireResponse(null, STATUS_UNKNOWN_ERROR, "Unsupported command " + method + " " + join(path));
+    }
+
+    private Object createSession(JSONObject body) {
+        JSONObject capabilities = body != null ? (JSONObject) body.get("desiredCapabilities") : null;
+        if(capabilities == null) {
+            capabilities = new JSONObject();
+        }
+        String sessionId = Long.toString(ids.getAndIncrement()) + "-" + Long.toHexString(random.nextLong());
+        Session session = new Session();
+        String deviceName = (String) capabilities.get("testdroid_device");
+        if(deviceName != null) {
+            session.device = findDevice(deviceName);
+            if(session.device == null || session.device.forcedLocked || session.device.freeUnits.decrementAndGet() < 0) {
+                if(session.device != null && !session.device.forcedLocked) {
+                    session.device.freeUnits.incrementAndGet();
+                }
+                return wireResponse(null, STATUS_UNKNOWN_ERROR, "Device '" + deviceName + "' not available");
+            }
+        }
+        String projectName = (String) capabilities.get("testdroid_project");
+        String testRunName = (String) capabilities.get("testdroid_testrun");
+        if(projectName != null && testRunName != null) {
+            Project project = projectFor(projectName);
+            session.testRun = new TestRun(ids.getAndIncrement(), ids.getAndIncrement(), testRunName, deviceName);
+            project.testRuns.add(0, session.testRun);
+        }
+        sessions.put(sessionId, session);
+        sessionCount.incrementAndGet();
+        return wireResponse(sessionId, STATUS_SUCCESS, capabilities);
+    }
+
+    private void deleteSession(String sessionId, Session session) {
+        if(sessions.remove(sessionId) != null) {
+            if(session.device != null) {
+                session.device.freeUnits.incrementAndGet();
+            }
+            if(session.testRun != null) {
+                session.testRun.finished = true;
+            }
+        }
+    }
+
+    private JSONObject element() {
+        JSONObject element = new JSONObject();
+        element.put("ELEMENT", Long.toString(ids.getAndIncrement()));
+        return element;
+    }
+
+    private static JSONObject wireResponse(String sessionId, int status, Object value) {
+        JSONObject response = new JSONObject();
+        response.put("sessionId", sessionId);
+        response.put("status", status);
+        if(status != STATUS_SUCCESS && value instanceof String) {
+            JSONObject error = new JSONObject();
+            error.put("message", value);
+            value = error;
+        }
+        response.put("value", value);
+        return response;
+    }
+
+    // Appium broker
+
+    private Object handleUpload() {
+        int count = uploadCount.incrementAndGet();
+        JSONObject uploads = new JSONObject();
+        uploads.put("file", "local/" + count + "/application");
+        JSONObject status = new JSONObject();
+        status.put("message", "uploads successful");
+        status.put("uploadCount", 1);
+        status.put("expiresIn", 1800);
+        status.put("uploads", uploads);
+        return wireResponse(null, STATUS_SUCCESS, status);
+    }
+
+    // Testdroid API
+
+    private Object handleApi(HttpExchange exchange, String[] path) throws IOException {
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        // users/<id>/... and me/... address the same resources
+        if(path.length >= 2 && path[0].equals("users")) {
+            String[] mePath = new String[path.length - 1];
+            mePath[0] = "me";
+            System.arraycopy(path, 2, mePath, 1, path.length - 2);
+            path = mePath;
+        }
+        if(path.length == 1 && path[0].equals("me")) {
+            JSONObject me = new JSONObject();
+            me.put("id", 1L);
+            me.put("email", "local@example.com");
+            me.put("name", "Local User");
+            return me;
+        }
+        if(path.length == 1 && path[0].equals("devices")) {
+            List<Object> result = new ArrayList<Object>();
+            for(Device device : devices) {
+                if(matches(device.name, query.get("search"))) {
+                    result.add(deviceJson(device));
+                }
+            }
+            return list(result, query);
+        }
+        if(path.length == 2 && path[0].equals("me") && path[1].equals("projects")) {
+            List<Object> result = new ArrayList<Object>();
+            for(Project project : projects.values()) {
+                if(matches(project.name, query.get("search"))) {
+                    JSONObject json = new JSONObject();
+                    json.put("id", project.id);
+                    json.put("name", project.name);
+                    result.add(json);
+                }
+            }
+            return list(result, query);
+        }
+        if(path.length >= 4 && path[0].equals("me") && path[1].equals("projects") && path[3].equals("runs")) {
+            Project project = projectById(Long.parseLong(path[2]));
+            if(project == null) {
+                return null;
+            }
+            if(path.length == 4) {
+                List<Object> result = new ArrayList<Object>();
+                for(TestRun testRun : project.testRuns) {
+                    if(matches(testRun.name, query.get("search"))) {
+                        JSONObject json = new JSONObject();
+                        json.put("id", testRun.id);
+                        json.put("displayName", testRun.name);
+                        json.put("state", testRun.finished ? "FINISHED" : "RUNNING");
+                        result.add(json);
+                    }
+                }
+                return list(result, query);
+            }
+            TestRun testRun = testRunById(project, Long.parseLong(path[4]));
+            if(testRun == null) {
+                return null;
+            }
+            if(path.length == 6 && path[5].equals("device-runs")) {
+                List<Object> result = new ArrayList<Object>();
+                JSONObject json = new JSONObject();
+                json.put("id", testRun.deviceRunId);
+                json.put("deviceName", testRun.deviceName);
+                result.add(json);
+                return list(result, query);
+            }
+            if(path.length == 8 && path[5].equals("device-runs") && path[7].equals("result-data.zip")) {
+                sendRange(exchange, resultDataZip);
+                return exchange;
+            }
+        }
+        return null;
+    }
+
+    private static JSONObject deviceJson(Device device) {
+        JSONObject softwareVersion = new JSONObject();
+        softwareVersion.put("apiLevel", device.apiLevel);
+        softwareVersion.put("releaseVersion", device.apiLevel == 0 ? "7.0" : "4.4");
+        JSONObject json = new JSONObject();
+        json.put("id", device.id);
+        json.put("displayName", device.name);
+        json.put("osType", device.apiLevel == 0 ? "IOS" : "ANDROID");
+        json.put("softwareVersion", softwareVersion);
+        json.put("locked", device.isLocked());
+        return json;
+    }
+
+    private static JSONObject list(List<Object> items, Map<String, String> query) {
+        int offset = query.containsKey("offset") ? Integer.parseInt(query.get("offset")) : 0;
+        int limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : 20;
+        JSONArray data = new JSONArray();
+        for(int i = offset; i < items.size() && i < offset + limit; i++) {
+            data.add(items.get(i));
+        }
+        JSONObject list = new JSONObject();
+        list.put("data", data);
+        list.put("offset", offset);
+        list.put("limit", limit);
+        list.put("total", items.size());
+        list.put("empty", data.isEmpty());
+        return list;
+    }
+
+    /**
+     * Serve content honouring a single "bytes=N-" range, as used for resuming downloads
+     */
+    private static void sendRange(HttpExchange exchange, byte[] content) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        int start = 0;
+        if(range != null && range.startsWith("bytes=") && range.endsWith("-")) {
+            start = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/zip");
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        if(start > 0) {
+            exchange.getResponseHeaders().set("Content-Range", String.format("bytes %d-%d/%d", start, content.length - 1, content.length));
+            exchange.sendResponseHeaders(206, content.length - start);
+        } else {
+            exchange.sendResponseHeaders(200, content.length);
+        }
+        OutputStream out = exchange.getResponseBody();
+        out.write(content, start, content.length - start);
+        out.close();
+    }
+
+    private Device findDevice(String name) {
+        for(Device device : devices) {
+            if(device.name.equalsIgnoreCase(name)) {
+                return device;
+            }
+        }
+        for(Device device : devices) {
+            if(matches(device.name, name)) {
+                return device;
+            }
+        }
+        return null;
+    }
+
+    private synchronized Project projectFor(String name) {
+        for(Project project : projects.values()) {
+            if(project.name.equals(name)) {
+                return project;
+            }
+        }
+        Project project = new Project(ids.getAndIncrement(), name);
+        projects.put(Long.toString(project.id), project);
+        return project;
+    }
+
+    private Project projectById(long id) {
+        return projects.get(Long.toString(id));
+    }
+
+    private static TestRun testRunById(Project project, long id) {
+        for(TestRun testRun : project.testRuns) {
+            if(testRun.id == id) {
+                return testRun;
+            }
+        }
+        return null;
+    }
+
+    private static boolean matches(String value, String search) {
+        return search == null || search.length() == 0 || value.toLowerCase().contains(search.toLowerCase());
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws IOException {
+        Map<String, String> query = new HashMap<String, String>();
+        if(rawQuery == null) {
+            return query;
+        }
+        for(String pair : rawQuery.split("&")) {
+            int i = pair.indexOf('=');
+            if(i > 0) {
+                query.put(URLDecoder.decode(pair.substring(0, i), "UTF-8"), URLDecoder.decode(pair.substring(i + 1), "UTF-8"));
+            }
+        }
+        return query;
+    }
+
+    private static String join(String[] path) {
+        StringBuilder sb = new StringBuilder();
+        for(String part : path) {
+            sb.append('/').append(part);
+        }
+        return sb.toString();
+    }
+
+    private static byte[] renderScreenshot() throws IOException {
+        BufferedImage image = new BufferedImage(480, 800, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, 480, 800);
+        g.setColor(Color.DARK_GRAY);
+        g.fillRect(0, 0, 480, 60);
+        g.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    private static byte[] createResultDataZip() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        zip.putNextEntry(new ZipEntry("logs/device.log"));
+        StringBuilder log = new StringBuilder();
+        for(int i = 0; i < 1000; i++) {
+            log.append(String.format("I/Local(%d): line %d%n", 1000 + i % 7, i));
+        }
+        zip.write(log.toString().getBytes("UTF-8"));
+        zip.closeEntry();
+        zip.putNextEntry(new ZipEntry("screenshots/1.png"));
+        zip.write(renderScreenshot());
+        zip.closeEntry();
+        zip.close();
+        return bytes.toByteArray();
+    }
+
+    private boolean takeInjectedFailure() {
+        int left;
+        do {
+            left = failuresLeft.get();
+            if(left <= 0) {
+                return false;
+            }
+        } while(!failuresLeft.compareAndSet(left, left - 1));
+        return true;
+    }
+
+    /**
+     * Applies latency and failure injection, parses JSON request bodies and writes JSON responses
+     */
+    private abstract class Handler implements HttpHandler {
+
+        abstract Object handle(HttpExchange exchange, String method, String[] path, JSONObject body) throws Exception;
+
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if(latencyMs > 0) {
+                    Thread.sleep(latencyMs);
+                }
+                InputStream in = exchange.getRequestBody();
+                byte[] content = IOUtils.toByteArray(in);
+                if(takeInjectedFailure() || (failureRate > 0 && random.nextDouble() < failureRate)) {
+                    send(exchange, 500, wireResponse(null, STATUS_UNKNOWN_ERROR, "Injected failure"));
+                    return;
+                }
+                JSONObject body = null;
+                String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+                if(content.length > 0 && (contentType == null || contentType.startsWith("application/json"))) {
+                    synchronized (parser) {
+                        try {
+                            Object parsed = parser.parse(new String(content, "UTF-8"));
+                            if(parsed instanceof JSONObject) {
+                                body = (JSONObject) parsed;
+                            }
+                        } catch (ParseException e) {
+                            // Only WebDriver commands need the body
+                        }
+                    }
+                }
+                String context = exchange.getHttpContext().getPath();
+                String rest = exchange.getRequestURI().getPath().substring(context.length());
+                List<String> parts = new ArrayList<String>();
+                for(String part : rest.split("/")) {
+                    if(part.length() > 0) {
+                        parts.add(part);
+                    }
+                }
+                Object response = handle(exchange, exchange.getRequestMethod(), parts.toArray(new String[parts.size()]), body);
+                if(response == exchange) {
+                    return;
+                }
+                if(response == null) {
+                    send(exchange, 404, wireResponse(null, STATUS_UNKNOWN_ERROR, "Not found"));
+                } else if(response instanceof JSONObject && ((JSONObject) response).containsKey("status")
+                        && !Integer.valueOf(STATUS_SUCCESS).equals(((JSONObject) response).get("status"))) {
+                    send(exchange, 500, response);
+                } else {
+                    send(exchange, 200, response);
+                }
+            } catch (Exception e) {
+                logger.warn("Local server failed handling {}", exchange.getRequestURI(), e);
+                send(exchange, 500, wireResponse(null, STATUS_UNKNOWN_ERROR, String.valueOf(e)));
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void send(HttpExchange exchange, int status, Object response) throws IOException {
+            byte[] bytes = (response instanceof JSONObject ? ((JSONObject) response).toJSONString() : String.valueOf(response)).getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.testdroid.appium;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.testdroid.api.model.APIDevice;
+
+/**
+ * Runs the client against TestdroidLocalServer with injected latency and failures
+ */
+public class TestdroidLocalServerTest {
+
+    private static final String ANDROID_DEVICE = "Local Nexus 7";
+    private static final String IOS_DEVICE = "Local iPhone 5";
+
+    private TestdroidLocalServer server;
+    private TestdroidAppiumClient client;
+    private File appFile;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestdroidLocalServer(0);
+        server.addDevice(ANDROID_DEVICE, 19, 1);
+        server.addDevice(IOS_DEVICE, 0, 1);
+        server.setLatencyMs(20);
+        server.start();
+
+        appFile = File.createTempFile("application", ".apk");
+        FileUtils.writeByteArrayToFile(appFile, new byte[64 * 1024]);
+
+        client = new TestdroidAppiumClient();
+        server.configure(client);
+        client.setUsername("local@example.com");
+        client.setPassword("local");
+        client.setProjectName("Local project");
+        client.setDeviceName(ANDROID_DEVICE);
+        client.setDeviceWaitTime(0);
+        client.setAppFile(appFile);
+        client.setUploadCacheEnabled(false);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        appFile.delete();
+    }
+
+    @Test
+    public void testUpload() throws Exception {
+        assertEquals("local/1/application", client.uploadFile());
+        assertEquals(1, server.getUploadCount());
+    }
+
+    @Test
+    public void testUploadRetriedAfterFailure() throws Exception {
+        server.failNextRequests(1);
+        // The failed attempt doesn't reach the upload handler
+        assertEquals("local/1/application", client.uploadFile());
+        assertEquals(1, server.getUploadCount());
+    }
+
+    @Test
+    public void testPlatformLookup() throws Exception {
+        assertEquals(TestdroidAppiumClient.APPIUM_PLATFORM_ANDROID, client.lookupPlatformName());
+        client.setDeviceName(IOS_DEVICE);
+        assertEquals(TestdroidAppiumClient.APPIUM_PLATFORM_IOS, client.lookupPlatformName());
+    }
+
+    @Test
+    public void testGetDevice() throws Exception {
+        APIDevice device = client.getDevice(ANDROID_DEVICE);
+        assertEquals(ANDROID_DEVICE, device.getDisplayName());
+        DeviceScheduler.release(device);
+    }
+
+    @Test
+    public void testSession() throws Exception {
+        TestdroidAppiumDriverAndroid driver = client.getAndroidDriver();
+        assertEquals(1, server.getActiveSessions());
+        assertTrue(driver.getPageSource().contains("Native"));
+        assertNotNull(client.getTrackedRun());
+        client.quit();
+        assertEquals(0, server.getActiveSessions());
+
+        // The device was released, a second session gets it again
+        client.getAndroidDriver();
+        assertEquals(1, server.getActiveSessions());
+        client.quit();
+    }
+
+    @Test
+    public void testBusyDevice() throws Exception {
+        server.setDeviceLocked(ANDROID_DEVICE, true);
+        try {
+            client.getAndroidDriver();
+            fail("Expected busy device to fail the session");
+        } catch (Exception e) {
+            // expected
+        }
+        assertEquals(0, server.getActiveSessions());
+    }
+}
@@ -0,0 +1,89 @@
+package com.testdroid.appium;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UploadCacheTest {
+
+    private static final String UPLOAD_URL = "http://localhost/upload";
+
+    private File directory;
+    private File cacheFile;
+    private File appFile;
+    private UploadCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("upload-cache", "");
+        directory.delete();
+        directory.mkdirs();
+        cacheFile = new File(directory, "cache/upload-cache.properties");
+        appFile = new File(directory, "application.apk");
+        FileUtils.writeStringToFile(appFile, "application");
+        cache = new UploadCache(cacheFile);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void testMissAndHit() {
+        String key = cache.key(appFile, UPLOAD_URL, "user");
+        assertNotNull(key);
+        assertNull(cache.get(key));
+        cache.put(key, "uploads/1", 1800);
+        assertEquals("uploads/1", cache.get(key));
+        // Persisted, another instance reads the same file
+        assertEquals("uploads/1", new UploadCache(cacheFile).get(key));
+    }
+
+    @Test
+    public void testKeyDependsOnContentUrlAndUser() throws IOException {
+        String key = cache.key(appFile, UPLOAD_URL, "user");
+        assertEquals(key, cache.key(appFile, UPLOAD_URL, "user"));
+        assertFalse(key.equals(cache.key(appFile, UPLOAD_URL, "other")));
+        assertFalse(key.equals(cache.key(appFile, "http://other/upload", "user")));
+        FileUtils.writeStringToFile(appFile, "new build");
+        assertFalse(key.equals(cache.key(appFile, UPLOAD_URL, "user")));
+        assertNull(cache.key(new File(directory, "missing.apk"), UPLOAD_URL, "user"));
+    }
+
+    @Test
+    public void testExpiry() {
+        String key = cache.key(appFile, UPLOAD_URL, "user");
+        // Entries expiring within the safety margin are not used
+        cache.put(key, "uploads/1", 30);
+        assertNull(cache.get(key));
+        // Uploads without expiry are not cached
+        cache.put(key, "uploads/2", null);
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    public void testReplaceCacheFile() {
+        String first = cache.key(appFile, UPLOAD_URL, "user");
+        String second = cache.key(appFile, UPLOAD_URL, "other");
+        cache.put(first, "uploads/1", 1800);
+        cache.put(second, "uploads/2", 1800);
+        cache.put(first, "uploads/3", 1800);
+        assertEquals("uploads/3", cache.get(first));
+        assertEquals("uploads/2", cache.get(second));
+        // Written through a temporary file that replaced the cache file
+        File[] files = cacheFile.getParentFile().listFiles();
+        assertEquals(1, files.length);
+        assertTrue(files[0].getName().equals(cacheFile.getName()));
+    }
+}